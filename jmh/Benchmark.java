@@ -0,0 +1,339 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*  Замеры трех вариантов CrptApi на локальной заглушке HTTP сервера.
+    Запуск: java Benchmark [limit] [docs] [threads...]
+    Класс лежит рядом с замерами JMH и в рабочую сборку не входит. Заглушка Http2StubServer лежит в тестах,
+    так что в classpath нужны классы main, test и jmh (или jar из gradle jmhJar, в который входят все три).
+    По умолчанию limit=500 запросов в секунду, docs=1000 документов на прогон, потоки 1 4 16 64 256.
+
+    Для каждого варианта и количества потоков выводятся:
+    - пропускная способность - сколько запросов в секунду дошло до заглушки;
+    - задержка вызова createDoc (p50, p99, max) - сколько поток-производитель простоял в методе;
+    - опоздание (p99, max) - на сколько фактическое начало посылки отстало от зарезервированного слота
+      (метрика lateness клиента). Промежутки между приходами на заглушку для этого не годятся:
+      в них к опозданию запуска добавляется время на соединение и разбор запроса.
+    Первые limit запросов не ждут окна, поэтому документов нужно заметно больше limit.
+    Замеры на JMH лежат в jmh/bench (сборка gradle jmhJar).
+
+    Запуск java Benchmark tenants [limit] сравнивает общую очередь CrptApiWithScheduledThreadPool
+    со справедливым планированием: участник "flood" разом ставит 10 * limit документов,
+    а участник "small" посылает по документу раз в 100 мс. Выводится задержка ответа для "small".
+
+    Запуск java Benchmark http2 [limit] [docs] посылает docs документов через createDocAsync
+    на заглушку Http2StubServer, отвечающую через 200 мс, и выводит, сколько соединений открыл клиент
+    и сколько потоков HTTP/2 шло по ним одновременно.
+    Запуск java Benchmark signing [limit] [docs] сравнивает подпись в потоке-производителе
+    со стадией SigningStage. Подпись имитирует обращение к сервису подписи длительностью 4 мс,
+    производитель один. Затем те же документы посылаются еще раз - их подписи берутся из кэша.
+
+    Во всех прогонах заглушка HTTP/1.1 считает запросы, в которых заголовок signature не единственный.
+ */
+public class Benchmark {
+    private interface DocSender {
+        void createDoc(Doc doc, String signature) throws InterruptedException, IOException;
+    }
+
+    //вариант CrptApi под замером: его createDoc и метрики
+    private static class Sender {
+        final DocSender sender;
+        final CrptApiMetrics metrics;
+
+        Sender(DocSender sender, CrptApiMetrics metrics) {
+            this.sender = sender;
+            this.metrics = metrics;
+        }
+    }
+
+    private interface SenderFactory {
+        Sender create(TimeUnit timeUnit, int requestLimit, String url);
+    }
+
+    //моменты прихода запросов на заглушку в шкале System.nanoTime()
+    private static final ConcurrentLinkedQueue<Long> arrivals = new ConcurrentLinkedQueue<>();
+    //запросы, пришедшие без заголовка signature или с несколькими его значениями
+    private static final AtomicInteger badSignatures = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("tenants")) {
+            compareTenantScheduling(args.length > 1 ? Integer.parseInt(args[1]) : 100);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("signing")) {
+            compareSigning(args.length > 1 ? Integer.parseInt(args[1]) : 500, args.length > 2 ? Integer.parseInt(args[2]) : 1000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("http2")) {
+            checkHttp2(args.length > 1 ? Integer.parseInt(args[1]) : 500, args.length > 2 ? Integer.parseInt(args[2]) : 1000);
+            return;
+        }
+        int limit = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int docs = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int[] threadCounts = args.length > 2
+                ? Arrays.stream(args, 2, args.length).mapToInt(Integer::parseInt).toArray()
+                : new int[]{1, 4, 16, 64, 256};
+
+        HttpServer server = startStubServer();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/v3/lk/documents/create";
+        try {
+            List<String> names = List.of("CrptApiWithSemaphore", "CrptApiWithSynchronizedBlock",
+                    "CrptApiWithScheduledThreadPool");
+            List<SenderFactory> factories = List.of(
+                    (timeUnit, requestLimit, u) -> {
+                        CrptApiWithSemaphore crptApi = new CrptApiWithSemaphore(timeUnit, requestLimit, u);
+                        return new Sender(crptApi::createDoc, crptApi.getMetrics());
+                    },
+                    (timeUnit, requestLimit, u) -> {
+                        CrptApiWithSynchronizedBlock crptApi = new CrptApiWithSynchronizedBlock(timeUnit, requestLimit, u);
+                        return new Sender(crptApi::createDoc, crptApi.getMetrics());
+                    },
+                    (timeUnit, requestLimit, u) -> {
+                        CrptApiWithScheduledThreadPool crptApi = new CrptApiWithScheduledThreadPool(timeUnit, requestLimit, u, null);
+                        return new Sender(crptApi::createDoc, crptApi.getMetrics());
+                    });
+            for (int i = 0; i < factories.size(); i++) {
+                for (int threads : threadCounts) {
+                    run(names.get(i), factories.get(i).create(TimeUnit.SECONDS, limit, url), limit, docs, threads);
+                }
+            }
+        } finally {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdown();
+        }
+    }
+
+    private static HttpServer startStubServer() throws IOException {
+        //по умолчанию сервер держит не больше 200 простаивающих соединений и закрывает лишние,
+        //а клиент, открывший их во время всплеска, натыкается на закрытое соединение и уходит в повтор
+        System.setProperty("sun.net.httpserver.maxIdleConnections", "10000");
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            arrivals.add(System.nanoTime());
+            List<String> signatures = exchange.getRequestHeaders().get("signature");
+            if (signatures == null || signatures.size() != 1) {
+                badSignatures.incrementAndGet();
+            }
+            exchange.getRequestBody().readAllBytes();
+            //ответ без тела уходит одной записью в сокет и не попадает под задержку алгоритма Нейгла
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        return server;
+    }
+
+    private static void run(String name, Sender sender, int limit, int docs, int threads)
+            throws InterruptedException {
+        //пока идет прогон, метрики клиента видны в jconsole
+        sender.metrics.register();
+        try {
+            measure(name, sender, limit, docs, threads);
+        } finally {
+            sender.metrics.unregister();
+        }
+    }
+
+    private static void measure(String name, Sender sender, int limit, int docs, int threads)
+            throws InterruptedException {
+        arrivals.clear();
+        Doc doc = new Doc();
+        long[] latencies = new long[docs];
+        int perThread = (docs + threads - 1) / threads;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            int from = t * perThread;
+            int to = Math.min(docs, from + perThread);
+            pool.execute(() -> {
+                try {
+                    start.await();
+                    for (int i = from; i < to; i++) {
+                        long callStart = System.nanoTime();
+                        sender.sender.createDoc(doc, "");
+                        latencies[i] = System.nanoTime() - callStart;
+                    }
+                } catch (InterruptedException | IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.MINUTES);
+        //вариант с пулом задач возвращается сразу, поэтому ждем, пока все запросы дойдут до заглушки
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(docs / limit + 30);
+        while (arrivals.size() < docs && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        List<Long> received = new ArrayList<>(arrivals);
+        received.sort(null);
+        long elapsed = received.isEmpty() ? 1 : received.get(received.size() - 1) - begin;
+        LatencyHistogram lateness = sender.metrics.getLateness();
+        Arrays.sort(latencies);
+        System.out.printf("%-31s потоков %3d: %7.1f запр/с, createDoc p50 %8.3f мс, p99 %8.3f мс, max %8.3f мс,"
+                        + " опоздание p99 %7.3f мс, max %7.3f мс, дошло %d из %d%n",
+                name, threads, received.size() * 1e9 / elapsed,
+                latencies[docs / 2] / 1e6, latencies[docs * 99 / 100] / 1e6, latencies[docs - 1] / 1e6,
+                lateness.getPercentile(99) / 1e6, lateness.getMax() / 1e6, received.size(), docs);
+        if (badSignatures.getAndSet(0) > 0) {
+            System.out.println("Внимание: в запросах повторяется заголовок signature");
+        }
+    }
+
+    private static void compareTenantScheduling(int limit) throws Exception {
+        HttpServer server = startStubServer();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/v3/lk/documents/create";
+        try {
+            for (boolean fair : new boolean[]{false, true}) {
+                CrptApiWithScheduledThreadPool crptApi =
+                        new CrptApiWithScheduledThreadPool(TimeUnit.SECONDS, limit, url, null);
+                if (fair) {
+                    crptApi.useFairScheduling();
+                }
+                crptApi.getMetrics().register();
+                try {
+                    runTenants(fair ? "справедливое планирование" : "общая очередь", crptApi, limit);
+                } finally {
+                    crptApi.getMetrics().unregister();
+                }
+            }
+        } finally {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdown();
+        }
+    }
+
+    private static void runTenants(String name, CrptApiWithScheduledThreadPool crptApi, int limit)
+            throws Exception {
+        Doc flood = new Doc();
+        flood.participant_inn = "flood";
+        Doc small = new Doc();
+        small.participant_inn = "small";
+        List<CompletableFuture<HttpResponse<String>>> floodResults = new ArrayList<>();
+        for (int i = 0; i < 10 * limit; i++) {
+            floodResults.add(crptApi.createDocAsync(flood, ""));
+        }
+        int smallDocs = 20;
+        long[] latencies = new long[smallDocs];
+        List<CompletableFuture<HttpResponse<String>>> smallResults = new ArrayList<>();
+        for (int i = 0; i < smallDocs; i++) {
+            int index = i;
+            long callStart = System.nanoTime();
+            smallResults.add(crptApi.createDocAsync(small, "")
+                    .whenComplete((response, e) -> latencies[index] = System.nanoTime() - callStart));
+            Thread.sleep(100);
+        }
+        CompletableFuture.allOf(smallResults.toArray(new CompletableFuture<?>[0])).get(10L * limit, TimeUnit.SECONDS);
+        Arrays.sort(latencies);
+        System.out.printf("%-27s: задержка участника small p50 %8.1f мс, max %8.1f мс%n",
+                name, latencies[smallDocs / 2] / 1e6, latencies[smallDocs - 1] / 1e6);
+        CompletableFuture.allOf(floodResults.toArray(new CompletableFuture<?>[0])).get(10L * limit, TimeUnit.SECONDS);
+    }
+
+    private static void checkHttp2(int limit, int docs) throws Exception {
+        try (Http2StubServer server = new Http2StubServer(200)) {
+            String url = "http://127.0.0.1:" + server.getPort() + "/api/v3/lk/documents/create";
+            CrptApiWithScheduledThreadPool crptApi = new CrptApiWithScheduledThreadPool(TimeUnit.SECONDS, limit, url, null);
+            crptApi.getMetrics().register();
+            try {
+                sendHttp2(server, crptApi, limit, docs);
+            } finally {
+                crptApi.getMetrics().unregister();
+            }
+        }
+    }
+
+    private static void sendHttp2(Http2StubServer server, CrptApiWithScheduledThreadPool crptApi, int limit, int docs)
+            throws Exception {
+        Doc doc = new Doc();
+        //первый запрос устанавливает соединение HTTP/2, остальные должны пойти по нему
+        crptApi.createDocAsync(doc, "warmup").get(10, TimeUnit.SECONDS);
+        int warmupConnections = server.getConnectionCount();
+        List<CompletableFuture<HttpResponse<String>>> results = new ArrayList<>(docs);
+        long start = System.nanoTime();
+        for (int i = 0; i < docs; i++) {
+            results.add(crptApi.createDocAsync(doc, "signature" + i));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).get(docs / limit + 30, TimeUnit.SECONDS);
+        long ok = results.stream().filter(r -> r.join().statusCode() == 200).count();
+        System.out.printf("HTTP/2: ответов 200 - %d из %d за %d мс, новых соединений %d, запросов HTTP/1.1 %d,"
+                        + " потоков HTTP/2 %d, одновременно до %d%n",
+                ok, docs, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                server.getConnectionCount() - warmupConnections,
+                server.getHttp1Requests(), server.getHttp2Streams(), server.getMaxOpenStreams());
+    }
+
+    private static void compareSigning(int limit, int docCount) throws Exception {
+        Signer signer = payload -> {
+            try {
+                Thread.sleep(4); //имитация обращения к сервису подписи
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            return Integer.toHexString(Arrays.hashCode(payload));
+        };
+        List<Doc> docs = new ArrayList<>(docCount);
+        for (int i = 0; i < docCount; i++) {
+            Doc doc = new Doc();
+            doc.doc_id = "doc" + i;
+            docs.add(doc);
+        }
+        DocSerializer serializer = new DocSerializer();
+        HttpServer server = startStubServer();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/v3/lk/documents/create";
+        ExecutorService signers = Executors.newFixedThreadPool(16);
+        CrptApiWithScheduledThreadPool inline = new CrptApiWithScheduledThreadPool(TimeUnit.SECONDS, limit, url, null);
+        CrptApiWithScheduledThreadPool staged = new CrptApiWithScheduledThreadPool(TimeUnit.SECONDS, limit, url, null);
+        inline.getMetrics().register();
+        staged.getMetrics().register();
+        try {
+            runSigning("подпись в производителе", docs, doc -> inline.createDocAsync(doc, signer.sign(serializer.serialize(doc))));
+
+            SigningStage stage = new SigningStage(signer, signers, docCount);
+            staged.useSigner(stage);
+            runSigning("стадия подписи", docs, staged::createDocAsync);
+            runSigning("стадия подписи, повтор", docs, staged::createDocAsync);
+            System.out.println("Подписей из кэша: " + stage.getCacheHits() + ", посчитано: " + stage.getCacheMisses());
+        } finally {
+            inline.getMetrics().unregister();
+            staged.getMetrics().unregister();
+            signers.shutdown();
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdown();
+        }
+    }
+
+    private interface AsyncSender {
+        CompletableFuture<HttpResponse<String>> send(Doc doc) throws Exception;
+    }
+
+    private static void runSigning(String name, List<Doc> docs, AsyncSender sender) throws Exception {
+        List<CompletableFuture<HttpResponse<String>>> results = new ArrayList<>(docs.size());
+        long start = System.nanoTime();
+        for (Doc doc : docs) {
+            results.add(sender.send(doc));
+        }
+        long produced = System.nanoTime() - start;
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-25s: производитель занят %6d мс, все ответы за %6d мс, %7.1f запр/с%n", name,
+                TimeUnit.NANOSECONDS.toMillis(produced), TimeUnit.NANOSECONDS.toMillis(elapsed), docs.size() * 1e9 / elapsed);
+    }
+}
@@ -0,0 +1,122 @@
+package bench;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*  Замеры JMH трех вариантов CrptApi на локальной заглушке HTTP сервера.
+    JMH не принимает классы замеров в пакете по умолчанию, а из именованного пакета классы
+    пакета по умолчанию по имени недоступны. Поэтому варианты создаются через отражение,
+    а createDoc вызывается через MethodHandle - это обычный вызов метода без упаковки аргументов.
+
+    Throughput - сколько документов в секунду принимает createDoc,
+    SampleTime - перцентили задержки createDoc, т.е. ожидания слота ограничителя.
+    CrptApiWithScheduledThreadPool без ограничения очереди возвращается сразу, и очередь росла бы
+    без предела, поэтому он создается с бюджетом задержки 1 с и политикой BLOCK.
+    Опоздание посылок относительно зарезервированного слота (джиттер планирования)
+    печатается по метрике lateness клиента в конце каждого прогона.
+
+    Количество потоков задается ключом -t, а main прогоняет по очереди 1, 4, 16, 64 и 256 потоков.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class CrptApiBenchmark {
+    @Param({"CrptApiWithSemaphore", "CrptApiWithSynchronizedBlock", "CrptApiWithScheduledThreadPool"})
+    public String variant;
+
+    @Param({"1000"})
+    public int requestLimit; //посылок в секунду
+
+    private HttpServer server;
+    private Object crptApi;
+    private Object doc;
+    private MethodHandle createDoc; //(crptApi, doc, signature)
+    private Object metrics;
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, 4, 16, 64, 256}) {
+            new Runner(new OptionsBuilder().include(CrptApiBenchmark.class.getName()).threads(threads).build()).run();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ReflectiveOperationException {
+        //как и в Benchmark: иначе сервер закрывает лишние простаивающие соединения и клиент уходит в повтор
+        System.setProperty("sun.net.httpserver.maxIdleConnections", "10000");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/v3/lk/documents/create";
+
+        Class<?> api = Class.forName(variant);
+        if (variant.equals("CrptApiWithScheduledThreadPool")) {
+            Class<?> policy = Class.forName("PendingQueue$OverloadPolicy");
+            crptApi = api.getConstructor(TimeUnit.class, int.class, String.class, Executor.class, Duration.class, policy)
+                    .newInstance(TimeUnit.SECONDS, requestLimit, url, null, Duration.ofSeconds(1),
+                            policy.getField("BLOCK").get(null));
+        } else {
+            crptApi = api.getConstructor(TimeUnit.class, int.class, String.class)
+                    .newInstance(TimeUnit.SECONDS, requestLimit, url);
+        }
+        Class<?> docClass = Class.forName("Doc");
+        Constructor<?> docConstructor = docClass.getDeclaredConstructor();
+        docConstructor.setAccessible(true); //Doc виден только в своем пакете
+        doc = docConstructor.newInstance();
+        createDoc = MethodHandles.lookup().unreflect(api.getMethod("createDoc", docClass, String.class))
+                .asType(MethodType.methodType(void.class, Object.class, Object.class, String.class));
+        metrics = api.getMethod("getMetrics").invoke(crptApi);
+        metrics.getClass().getMethod("register").invoke(metrics); //на время прогона метрики видны в JMX
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws ReflectiveOperationException {
+        Object lateness = metrics.getClass().getMethod("getLateness").invoke(metrics);
+        long p99 = (Long) lateness.getClass().getMethod("getPercentile", double.class).invoke(lateness, 99.0);
+        long max = (Long) lateness.getClass().getMethod("getMax").invoke(lateness);
+        System.out.printf("%n%s: опоздание посылок относительно слота p99 %.3f мс, max %.3f мс%n",
+                variant, p99 / 1e6, max / 1e6);
+        metrics.getClass().getMethod("unregister").invoke(metrics);
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdown();
+    }
+
+    @Benchmark
+    public void createDoc() throws Throwable {
+        createDoc.invokeExact(crptApi, doc, "");
+    }
+}
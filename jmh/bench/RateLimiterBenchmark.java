@@ -0,0 +1,99 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+/*  Стоимость резервирования слота RateLimiter под конкуренцией потоков, без HTTP.
+    Окно в одну наносекунду не задерживает ни одного запроса, так что замеряется только
+    стоимость билета и записи времени в кольцо. Потоки задаются ключом -t.
+    RateLimiter лежит в пакете по умолчанию, поэтому вызываем его через MethodHandle, как и в CrptApiBenchmark.
+    ringReserve - то же кольцо InMemoryRateLimitBackend напрямую, без проверок паузы и лимита в RateLimiter.
+    Точка отсчета для него - monitorReserve: то же кольцо под обычным монитором.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class RateLimiterBenchmark {
+    @Param({"1024"})
+    public int requestLimit;
+
+    private Object rateLimiter;
+    private MethodHandle reserve; //(rateLimiter) -> момент слота
+    private Object ring;
+    private MethodHandle ringReserve; //(ring, period, gap, notBefore) -> момент слота
+    private long notBefore;
+    private MonitorRing monitorRing;
+
+    //Кольцо времен допуска под монитором, как в исходных вариантах CrptApi
+    private static class MonitorRing {
+        private final long period;
+        private final long[] sendTimes;
+        private int next;
+
+        MonitorRing(long period, int requestLimit) {
+            this.period = period;
+            sendTimes = new long[requestLimit];
+            long start = System.nanoTime() - period;
+            for (int i = 0; i < requestLimit; i++) {
+                sendTimes[i] = start;
+            }
+        }
+
+        synchronized long reserve() {
+            long now = System.nanoTime();
+            long sendTime = sendTimes[next] + period;
+            if (sendTime - now < 0) {
+                sendTime = now;
+            }
+            sendTimes[next] = sendTime;
+            next = (next + 1 == sendTimes.length) ? 0 : next + 1;
+            return sendTime;
+        }
+    }
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        Class<?> limiter = Class.forName("RateLimiter");
+        rateLimiter = limiter.getConstructor(TimeUnit.class, int.class).newInstance(TimeUnit.NANOSECONDS, requestLimit);
+        reserve = MethodHandles.lookup().unreflect(limiter.getMethod("reserve"))
+                .asType(MethodType.methodType(long.class, Object.class));
+        Class<?> backend = Class.forName("InMemoryRateLimitBackend");
+        ring = backend.getConstructor(TimeUnit.class, int.class).newInstance(TimeUnit.NANOSECONDS, requestLimit);
+        ringReserve = MethodHandles.lookup().unreflect(backend.getMethod("reserve", long.class, long.class, long.class))
+                .asType(MethodType.methodType(long.class, Object.class, long.class, long.class, long.class));
+        notBefore = System.nanoTime();
+        monitorRing = new MonitorRing(1, requestLimit);
+    }
+
+    @Benchmark
+    public long reserve() throws Throwable {
+        return (long) reserve.invokeExact(rateLimiter);
+    }
+
+    @Benchmark
+    public long ringReserve() throws Throwable {
+        return (long) ringReserve.invokeExact(ring, 1L, 0L, notBefore);
+    }
+
+    @Benchmark
+    public long monitorReserve() {
+        return monitorRing.reserve();
+    }
+}
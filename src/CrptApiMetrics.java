@@ -0,0 +1,202 @@
+import org.apache.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*  Метрики CrptApi: счетчики документов, гистограммы длительностей и глубина очереди.
+    Запись идет через LongAdder и LatencyHistogram, т.е. без блокировок и без аллокаций,
+    и не мешает потокам на горячем пути.
+    Вызов register() регистрирует объект в платформенном MBeanServer под именем CrptApi:type=Metrics,name=<name>,
+    так что метрики видны в jconsole/VisualVM. Регистрирует тот, кто владеет клиентом, и он же снимает
+    регистрацию (unregister), когда клиент больше не нужен: MBeanServer держит ссылку на объект,
+    и сам конструктор клиента регистрировать метрики не может - иначе каждый клиент остается в памяти навсегда.
+
+    Документ считается ожидающим с момента поступления в createDoc до успешной посылки или ошибки.
+ */
+public class CrptApiMetrics implements CrptApiMetricsMBean {
+    private final Logger logger = Logger.getLogger(CrptApiMetrics.class);
+    private final String name;
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LatencyHistogram queueWait = new LatencyHistogram();     //от поступления до начала посылки
+    private final LatencyHistogram lateness = new LatencyHistogram();      //от зарезервированного слота до начала посылки
+    private final LatencyHistogram httpLatency = new LatencyHistogram();   //от начала посылки до ответа
+    private final LatencyHistogram serialization = new LatencyHistogram(); //сериализация документа
+
+    public CrptApiMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Регистрирует метрики в платформенном MBeanServer. Повторный вызов ничего не делает.
+     */
+    public synchronized void register() {
+        try {
+            ObjectName objectName = objectName();
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            }
+        } catch (JMException e) {
+            //без JMX метрики все равно доступны через методы объекта
+            logger.warn("Не удалось зарегистрировать метрики " + name + " в JMX", e);
+        }
+    }
+
+    /**
+     * Снимает регистрацию метрик в MBeanServer, если они были зарегистрированы.
+     */
+    public synchronized void unregister() {
+        try {
+            ObjectName objectName = objectName();
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            logger.warn("Не удалось снять регистрацию метрик " + name + " в JMX", e);
+        }
+    }
+
+    private ObjectName objectName() throws JMException {
+        return new ObjectName("CrptApi:type=Metrics,name=" + ObjectName.quote(name));
+    }
+
+    public void submitted() {
+        submitted.increment();
+    }
+
+    public void serialized(long nanos) {
+        serialization.record(nanos);
+    }
+
+    public void dequeued(long waitNanos) {
+        queueWait.record(waitNanos);
+    }
+
+    public void admitted(long latenessNanos) {
+        lateness.record(latenessNanos);
+    }
+
+    public void sent(long httpNanos) {
+        httpLatency.record(httpNanos);
+        sent.increment();
+    }
+
+    public void failed() {
+        failed.increment();
+    }
+
+    public void retried() {
+        retried.increment();
+    }
+
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    public LatencyHistogram getLateness() {
+        return lateness;
+    }
+
+    public LatencyHistogram getHttpLatency() {
+        return httpLatency;
+    }
+
+    public LatencyHistogram getSerialization() {
+        return serialization;
+    }
+
+    @Override
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    @Override
+    public long getSent() {
+        return sent.sum();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getRetried() {
+        return retried.sum();
+    }
+
+    @Override
+    public long getPending() {
+        //счетчики читаются не одновременно, поэтому на мгновение значение может уйти в минус
+        return Math.max(0, submitted.sum() - sent.sum() - failed.sum());
+    }
+
+    @Override
+    public long getQueueWaitMeanMicros() {
+        return micros(queueWait.getMean());
+    }
+
+    @Override
+    public long getQueueWaitP99Micros() {
+        return micros(queueWait.getPercentile(99));
+    }
+
+    @Override
+    public long getQueueWaitMaxMicros() {
+        return micros(queueWait.getMax());
+    }
+
+    @Override
+    public long getLatenessMeanMicros() {
+        return micros(lateness.getMean());
+    }
+
+    @Override
+    public long getLatenessP99Micros() {
+        return micros(lateness.getPercentile(99));
+    }
+
+    @Override
+    public long getLatenessMaxMicros() {
+        return micros(lateness.getMax());
+    }
+
+    @Override
+    public long getHttpLatencyMeanMicros() {
+        return micros(httpLatency.getMean());
+    }
+
+    @Override
+    public long getHttpLatencyP99Micros() {
+        return micros(httpLatency.getPercentile(99));
+    }
+
+    @Override
+    public long getHttpLatencyMaxMicros() {
+        return micros(httpLatency.getMax());
+    }
+
+    @Override
+    public long getSerializationMeanMicros() {
+        return micros(serialization.getMean());
+    }
+
+    @Override
+    public long getSerializationP99Micros() {
+        return micros(serialization.getPercentile(99));
+    }
+
+    @Override
+    public long getSerializationMaxMicros() {
+        return micros(serialization.getMax());
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * JMX интерфейс метрик CrptApi. Длительности отдаются в микросекундах.
+ */
+public interface CrptApiMetricsMBean {
+    long getSubmitted();
+
+    long getSent();
+
+    long getFailed();
+
+    long getRetried();
+
+    long getPending();
+
+    long getQueueWaitMeanMicros();
+
+    long getQueueWaitP99Micros();
+
+    long getQueueWaitMaxMicros();
+
+    long getLatenessMeanMicros();
+
+    long getLatenessP99Micros();
+
+    long getLatenessMaxMicros();
+
+    long getHttpLatencyMeanMicros();
+
+    long getHttpLatencyP99Micros();
+
+    long getHttpLatencyMaxMicros();
+
+    long getSerializationMeanMicros();
+
+    long getSerializationP99Micros();
+
+    long getSerializationMaxMicros();
+}
@@ -1,15 +1,21 @@
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
-import java.net.URI;
+import java.io.InterruptedIOException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
 import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static java.lang.Thread.currentThread;
 
@@ -33,93 +39,855 @@ import static java.lang.Thread.currentThread;
 
    В силу вышесказанного оставляю в составе класса массив моментов запуска
    из последних поставленных в очередь задач.
-   По нему и вычисляю время запуска задачи из текущего потока
+   По нему и вычисляю время запуска задачи из текущего потока.
+   Массив и расчет времени запуска вынесены в общий RateLimiter, который резервирует слот без мьютекса.
+
+   Пул с нулевым количеством постоянных потоков исполняет задачи фактически в одном потоке,
+   и синхронная посылка одной задачи задерживает все следующие.
+   Поэтому в конструктор можно передать отдельный исполнитель посылок (например, на виртуальных потоках).
+   Тогда пул работает только как таймер: в назначенный момент просыпается и передает задачу исполнителю.
+
+   Обследование показало, что пул задач запускает их с отставанием до десятых долей секунды.
+   Поэтому роль таймера теперь выполняет DispatchScheduler, запускающий задачи
+   с точностью долей миллисекунды от зарезервированного момента.
+   По умолчанию посылки исполняются в пуле с заранее запущенными потоками (newDispatchPool):
+   кэширующий пул в холодном всплеске создавал поток на каждую посылку, и они запускались с опозданием.
+
+   Если задан бюджет задержки, число ожидающих посылки запросов ограничивается PendingQueue,
+   а при переполнении действует выбранная OverloadPolicy.
+
+   Если подключен журнал DocOutbox, документ записывается на диск до постановки в очередь
+   и отмечается в журнале после получения ответа или окончательной ошибки, а непосланные документы прошлого запуска
+   посылаются заново при подключении журнала.
+
+   Если включено справедливое планирование (useFairScheduling), слот не резервируется при вызове,
+   а документ встает в очередь своего участника в TenantScheduler. Тогда поток документов
+   одного участника не задерживает документы остальных.
+
+   Если подключена стадия подписи (useSigner), документ можно передать без подписи (createDocAsync(Doc)):
+   подпись считается в пуле SigningStage, а слот резервируется, когда подпись готова.
+   Пока документы ждут подписи, уже подписанные уходят по своим слотам, т.е. подпись и ожидание квоты
+   идут одновременно, но неподписанный документ слот не занимает.
  */
 public class CrptApiWithScheduledThreadPool { //все поля можно сделать финальными для надежности
     private TimeUnit timeUnit; //инициализируется в конструкторе
-    private ObjectMapper objectMapper = new ObjectMapper();
+    private DocSerializer serializer = new DocSerializer(); //пишет документ сразу в байты
+    private RateLimiter rateLimiter; //ограничитель частоты отправок. Создается в конструкторе
+    private CrptApiMetrics metrics = new CrptApiMetrics("CrptApiWithScheduledThreadPool@"
+            + Integer.toHexString(System.identityHashCode(this)));
+
+    private Logger logger = Logger.getLogger(CrptApiWithScheduledThreadPool.class);
+    private String URL = "https://ismp.crpt.ru/api/v3/lk/documents/create"; //адрес по умолчанию
+    private RequestFactory requestFactory; //инициализируется в конструкторе
+    private HttpClient client; //HTTP/2, ответы в исполнителе посылок. Создается в конструкторе
+    private DispatchScheduler scheduler; //таймер посылок. Создается в конструкторе
+    private Executor dispatchExecutor; //исполнитель посылок. Задается в конструкторе
+    private volatile TenantScheduler tenantScheduler; //очереди участников. Если null - общая очередь
+    private volatile SigningStage signingStage; //подпись документов. Если null - подпись передает вызывающий
+    private PendingQueue pendingQueue; //ограничение очереди посылок. Если null - очередь не ограничена
+    private RetryPolicy retryPolicy = new RetryPolicy(); //правила повтора неудачных посылок
+    private volatile DocOutbox outbox; //журнал исходящих документов. Если null - не ведется
+    //задачи, чей слот пропал, в порядке очереди. Уходят первыми по следующим действующим слотам
+    private ConcurrentLinkedQueue<Runnable> displaced = new ConcurrentLinkedQueue<>();
+    //слот, зарезервированный взамен пропавшего: своей задачи у него нет, он достается очереди displaced
+    private static final Runnable NO_TASK = () -> {
+    };
 
-    //чтобы сделать ячейки массива волатильными используем не просто long[], а AtomicLongArray
-    private AtomicLongArray sendTimes; //массив для хранения времен отправок. Записывается по кольцу
-    private int lastSendTimeIndex = 0; //индекс ячейки массива, хранящей последнюю отправку
+    //Подготовленный запрос и id документа в журнале (-1, если журнал не ведется)
+    private static class Outgoing {
+        final HttpRequest request;
+        final long outboxId;
 
-    private int nextIndex(int index) { //индекс следующей ячейки массива. Считаем по кольцу
-        return (index == sendTimes.length() - 1) ? 0 : index + 1;
+        Outgoing(HttpRequest request, long outboxId) {
+            this.request = request;
+            this.outboxId = outboxId;
+        }
     }
 
-    private Logger logger = Logger.getLogger(CrptApiWithScheduledThreadPool.class);
-    private String URL = "https://ismp.crpt.ru/api/v3/lk/documents/create"; //может быть параметром конструктора
-    private HttpRequest.Builder builder = HttpRequest
-            .newBuilder().uri(URI.create(URL)).timeout(Duration.ofSeconds(10));
-    private HttpClient client = HttpClient.newHttpClient();
-    //постоянно живущих потоков пока не планируем
-    private ScheduledExecutorService executor = Executors.newScheduledThreadPool(0);
-
     public CrptApiWithScheduledThreadPool(TimeUnit timeUnit, int requestLimit) {
-        this.timeUnit = timeUnit;
-        //Размер массива для хранения времен отправок равен
-        //разрешенному количеству отправок в единицу времени.
-        sendTimes = new AtomicLongArray(requestLimit);
+        this(timeUnit, requestLimit, null);
     }
+
+    public CrptApiWithScheduledThreadPool(TimeUnit timeUnit, int requestLimit, Executor dispatchExecutor) {
+        this(timeUnit, requestLimit, null, dispatchExecutor);
+    }
+
+    //адрес можно подменить, например, на локальную заглушку для замеров
+    public CrptApiWithScheduledThreadPool(TimeUnit timeUnit, int requestLimit, String url, Executor dispatchExecutor) {
+        this(timeUnit, requestLimit, url, dispatchExecutor, null, null);
+    }
+
+    /**
+     * latencyBudget - сколько документ может ждать посылки. Из него и частоты посылок
+     * считается емкость очереди. Если latencyBudget равен null, очередь не ограничена.
+     * policy - что делать при переполнении очереди. По политике BLOCK ждем места не дольше latencyBudget.
+     */
+    public CrptApiWithScheduledThreadPool(TimeUnit timeUnit, int requestLimit, String url, Executor dispatchExecutor,
+                                          Duration latencyBudget, PendingQueue.OverloadPolicy policy) {
+        this(new RateLimiter(timeUnit, requestLimit), url, dispatchExecutor, latencyBudget, policy);
+    }
+
+    /**
+     * rateLimiter - ограничитель, в том числе с общим для нескольких JVM хранилищем слотов.
+     * Емкость очереди считается из его полного лимита.
+     */
+    public CrptApiWithScheduledThreadPool(RateLimiter rateLimiter, String url, Executor dispatchExecutor,
+                                          Duration latencyBudget, PendingQueue.OverloadPolicy policy) {
+        pendingQueue = PendingQueue.forLatencyBudget(rateLimiter, latencyBudget, policy);
+        if (url != null) {
+            URL = url;
+        }
+        requestFactory = new RequestFactory(URL);
+        this.timeUnit = rateLimiter.getTimeUnit();
+        this.dispatchExecutor = (dispatchExecutor != null) ? dispatchExecutor : newDispatchPool();
+        scheduler = new DispatchScheduler("CrptApi-dispatcher", this.dispatchExecutor);
+        client = RequestFactory.newHttpClient(this.dispatchExecutor);
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Исполнитель, запускающий каждую задачу в новом виртуальном потоке.
+     * Виртуальные потоки появились в Java 21, поэтому ищем фабрику через рефлексию,
+     * чтобы класс компилировался и на более старых версиях.
+     * Если виртуальных потоков нет, возвращаем кэширующий пул платформенных потоков.
+     */
+    public static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Есть ли в этой JVM виртуальные потоки. Если нет, virtualThreadExecutor() возвращает обычный кэширующий пул.
+     */
+    public static boolean hasVirtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    //Исполнитель посылок по умолчанию. Потоки по числу процессоров (но не меньше двух) запускаются сразу
+    //и не умирают при простое, поэтому посылка в начале всплеска не ждет создания потока.
+    //Сверх них потоки добавляются и умирают как в кэширующем пуле. Все потоки - демоны и не держат JVM
+    private static ExecutorService newDispatchPool() {
+        int warmThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(warmThreads, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), task -> {
+                    Thread thread = new Thread(task, "CrptApi-sender-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.prestartAllCoreThreads();
+        return pool;
+    }
+    /**
+     * Включает справедливое распределение квоты между участниками.
+     * Участник документа - participant_inn, а если он не задан - owner_inn.
+     * Через возвращаемый планировщик можно задать веса и собственные лимиты участников.
+     * Посылки из вызывающего потока (CALLER_RUNS_LATER), повторы и документы из журнала
+     * по-прежнему берут слот общего ограничителя напрямую.
+     */
+    public TenantScheduler useFairScheduling() {
+        TenantScheduler current = tenantScheduler;
+        if (current == null) {
+            synchronized (this) {
+                current = tenantScheduler;
+                if (current == null) {
+                    current = new TenantScheduler("CrptApi-tenants", rateLimiter, dispatchExecutor, metrics);
+                    tenantScheduler = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Подключает стадию подписи для createDocAsync(Doc).
+     */
+    public void useSigner(SigningStage signingStage) {
+        this.signingStage = signingStage;
+    }
+
+    /**
+     * Подключает журнал исходящих документов и сразу ставит на посылку
+     * непосланные документы, найденные в нем от прошлого запуска.
+     * Ошибки их посылки только логируются - ждать результата некому.
+     */
+    public void useOutbox(DocOutbox outbox) {
+        this.outbox = outbox;
+        List<DocOutbox.Entry> unsent = outbox.getUnsent();
+        if (unsent.isEmpty()) {
+            return;
+        }
+        long submitTime = System.nanoTime();
+        long[] sendTimes = rateLimiter.reserve(unsent.size());
+        for (int i = 0; i < sendTimes.length; i++) {
+            DocOutbox.Entry entry = unsent.get(i);
+            metrics.submitted();
+            CompletableFuture<HttpResponse<String>> result = new CompletableFuture<>();
+            result.whenComplete((response, e) -> {
+                if (e != null) {
+                    logger.error(LocalTime.now() + " Ошибка при повторной посылке документа из журнала", e);
+                }
+            });
+            Outgoing outgoing = new Outgoing(requestFactory.create(entry.signature, entry.json), entry.id);
+            schedule(sendAsyncTask(outgoing, result, submitTime), sendTimes[i]);
+        }
+        logger.info(LocalTime.now() + " Из журнала поставлено на посылку документов: " + sendTimes.length);
+    }
+
     /**
      * Создание документа для ввода в оборот товара, произведенного в РФ.
      * Документ и подпись должны передаваться в метод в виде Java объекта и строки соответственно.
+     * Если очередь посылок ограничена и переполнена, поведение определяет OverloadPolicy:
+     * отказ - RejectedExecutionException, CALLER_RUNS_LATER - посылка из вызывающего потока.
+     * Если журнал подключен, метод ждет записи документа на диск: после возврата документ не потеряется.
      */
     public void createDoc(Doc doc, String signature) throws InterruptedException, IOException {
+        metrics.submitted();
+        PendingQueue.Entry entry = null;
+        if (pendingQueue != null) {
+            try {
+                entry = pendingQueue.admit(this::dropped);
+            } catch (RejectedExecutionException | InterruptedException e) {
+                metrics.failed();
+                throw e;
+            }
+        }
+        enqueue(doc, signature, entry);
+    }
+
+    /**
+     * Создание документа с ожиданием места в ограниченной очереди не дольше timeout.
+     * Возвращает false, если место не освободилось и документ не принят.
+     * Политика переполнения здесь не применяется - вызывающий сам задал, сколько готов ждать.
+     */
+    public boolean tryCreateDoc(Doc doc, String signature, Duration timeout) throws InterruptedException, IOException {
+        metrics.submitted();
+        PendingQueue.Entry entry = null;
+        if (pendingQueue != null) {
+            entry = pendingQueue.tryAdmit(timeout.toNanos(), TimeUnit.NANOSECONDS, this::dropped);
+            if (entry == null) {
+                metrics.failed();
+                return false;
+            }
+        }
+        enqueue(doc, signature, entry);
+        return true;
+    }
+
+    //Ставим документ в очередь на посылку. entry - занятое место в ограниченной очереди или null
+    private void enqueue(Doc doc, String signature, PendingQueue.Entry entry) throws InterruptedException, IOException {
         String threadName = currentThread().getName();
-        logger.debug(LocalTime.now() + " Вызов метода createDoc из потока " + threadName);
-        //превращаем объект-параметр в json строку
-        String json = objectMapper.writeValueAsString(doc);
-
-        //Готовим запрос в синхронизированном блоке, т.к. методы builder - не синхронизированы
-        //и разные потоки могут помешать друг другу
-        //Используем мьютекс любого произвольного общего объекта, чтобы разрешить другим потокам
-        //исполнять этот блок во время постановки задачи в очередь
-        HttpRequest request;
-        synchronized (timeUnit) {
-            request = builder.header("signature", signature)
-                    .POST(HttpRequest.BodyPublishers.ofString(json)).build();
+        if (logger.isDebugEnabled()) {
+            logger.debug(LocalTime.now() + " Вызов метода createDoc из потока " + threadName);
+        }
+        long submitTime = System.nanoTime();
+        Outgoing outgoing;
+        try {
+            outgoing = prepareRequest(doc, signature);
+        } catch (IOException e) {
+            //вытесненный из очереди документ уже учтен как неудача
+            if (release(entry)) {
+                metrics.failed();
+            }
+            throw e;
         }
         //Готовим задачу для постановки в пул
-        Runnable task = () -> {
+        Runnable task = sendTask(outgoing, threadName, submitTime, 1);
+
+        if (isCallerRuns(entry)) {
+            //очередь переполнена - ждем своего момента и посылаем прямо из вызывающего потока
+            onSlot(task, rateLimiter.acquire()).run();
+            return;
+        }
+        long waitingTime = dispatch(doc, whenClaimed(entry, outgoing, task));
+        if (logger.isDebugEnabled()) {
+            logger.debug(LocalTime.now() + " Поток " + threadName +
+                    " поставил задачу в очередь на "+LocalTime.now().plusNanos(waitingTime)+
+                    ". Планируемая задержка - " + waitingTime + " нс");
+        }
+    }
+
+    /**
+     * Асинхронное создание документа. Метод не блокирует вызывающий поток:
+     * если журнал подключен, документ дописывается в него асинхронно, и посылка планируется на разрешенный
+     * ограничителем момент, только когда запись попала на диск. Сам запрос уходит через sendAsync,
+     * так что ни один поток не занят ожиданием ни журнала, ни очереди, ни ответа.
+     * Ответ или ошибка (в том числе сериализации и журнала) передаются вызывающему через возвращаемый CompletableFuture.
+     * Отмена future до наступления запланированного момента отменяет посылку, но слот остается израсходованным.
+     * Отказ ограниченной очереди также приходит через future. Исключение - политики BLOCK
+     * и CALLER_RUNS_LATER, которые при переполнении задерживают вызывающий поток.
+     */
+    public CompletableFuture<HttpResponse<String>> createDocAsync(Doc doc, String signature) {
+        CompletableFuture<HttpResponse<String>> result = new CompletableFuture<>();
+        metrics.submitted();
+        long submitTime = System.nanoTime();
+        PendingQueue.Entry entry = null;
+        if (pendingQueue != null) {
+            try {
+                entry = pendingQueue.admit(() -> dropped(result));
+            } catch (RejectedExecutionException | InterruptedException e) {
+                if (e instanceof InterruptedException) {
+                    currentThread().interrupt();
+                }
+                fail(result, e);
+                return result;
+            }
+        }
+        byte[] json;
+        try {
+            json = serialize(doc);
+        } catch (IOException e) {
+            release(entry);
+            fail(result, e);
+            return result;
+        }
+        CompletableFuture<Outgoing> outgoing = prepareRequestAsync(signature, json);
+        if (isCallerRuns(entry)) {
+            //очередь переполнена - ждем записи в журнал и своего момента в вызывающем потоке
+            Outgoing prepared;
+            long sendTime;
+            try {
+                prepared = outgoing.get();
+                sendTime = rateLimiter.acquire();
+            } catch (ExecutionException e) {
+                fail(result, e.getCause());
+                return result;
+            } catch (InterruptedException e) {
+                currentThread().interrupt();
+                fail(result, e);
+                return result;
+            }
+            onSlot(sendAsyncTask(prepared, result, submitTime), sendTime).run();
+            return result;
+        }
+        dispatchWhenReady(doc, outgoing, entry, result, submitTime);
+        return result;
+    }
+
+    //Планирует посылку, когда запрос готов (документ записан в журнал). Ошибка подготовки сразу уходит в result
+    private void dispatchWhenReady(Doc doc, CompletableFuture<Outgoing> outgoing, PendingQueue.Entry entry,
+                                   CompletableFuture<HttpResponse<String>> result, long submitTime) {
+        outgoing.whenComplete((prepared, e) -> {
+            if (e != null) {
+                //вытесненный из очереди документ уже получил свой отказ
+                if (entry == null || entry.claim()) {
+                    fail(result, (e instanceof CompletionException) ? e.getCause() : e);
+                }
+                return;
+            }
+            long waitingTime = dispatch(doc, whenClaimed(entry, prepared, sendAsyncTask(prepared, result, submitTime)));
+            if (logger.isDebugEnabled()) {
+                logger.debug(LocalTime.now() + " Асинхронная посылка запланирована с задержкой " + waitingTime + " нс");
+            }
+        });
+    }
+
+    /**
+     * Асинхронное создание документа, подпись которого считает подключенная стадия SigningStage.
+     * Подпись считается в пуле стадии, затем документ дописывается в журнал, если он подключен,
+     * и только тогда для него резервируется слот. Поэтому слот не достается неподписанному документу
+     * и не пропадает, а документ с готовой подписью не встает в конец очереди из-за потерянного слота.
+     * Ни вызывающий поток, ни пул стадии подписи ожидание слота не занимает.
+     * Ошибка подписи, как и остальные ошибки, приходит через возвращаемый future.
+     */
+    public CompletableFuture<HttpResponse<String>> createDocAsync(Doc doc) {
+        SigningStage stage = signingStage;
+        if (stage == null) {
+            throw new IllegalStateException("Стадия подписи не подключена, нужен вызов useSigner");
+        }
+        CompletableFuture<HttpResponse<String>> result = new CompletableFuture<>();
+        metrics.submitted();
+        long submitTime = System.nanoTime();
+        PendingQueue.Entry entry = null;
+        if (pendingQueue != null) {
+            try {
+                entry = pendingQueue.admit(() -> dropped(result));
+            } catch (RejectedExecutionException | InterruptedException e) {
+                if (e instanceof InterruptedException) {
+                    currentThread().interrupt();
+                }
+                fail(result, e);
+                return result;
+            }
+        }
+        byte[] json;
+        try {
+            json = serialize(doc);
+        } catch (IOException e) {
+            release(entry);
+            fail(result, e);
+            return result;
+        }
+        //запись в журнал начинается после подписи и не занимает поток, закончивший подпись
+        CompletableFuture<Outgoing> outgoing = stage.sign(json)
+                .thenCompose(signature -> prepareRequestAsync(signature, json));
+        if (isCallerRuns(entry)) {
+            //ждем подписи, записи в журнал и своего момента в вызывающем потоке
+            Outgoing prepared;
+            long sendTime;
+            try {
+                prepared = outgoing.get();
+                sendTime = rateLimiter.acquire();
+            } catch (ExecutionException e) {
+                fail(result, e.getCause());
+                return result;
+            } catch (InterruptedException e) {
+                currentThread().interrupt();
+                fail(result, e);
+                return result;
+            }
+            onSlot(sendAsyncTask(prepared, result, submitTime), sendTime).run();
+            return result;
+        }
+        dispatchWhenReady(doc, outgoing, entry, result, submitTime);
+        return result;
+    }
+
+    /**
+     * Пакетное создание документов.
+     * Документы сериализуются параллельно и асинхронно дописываются в журнал, если он подключен.
+     * Когда все документы части на диске, слоты для нее резервируются в ограничителе за один шаг,
+     * и посылки планируются подряд на зарезервированные моменты. Ни общий пул, ни вызывающий поток fsync не ждут.
+     * Подпись для каждого документа получаем от signatureProvider.
+     * Результат каждого документа возвращается в отдельном CompletableFuture в порядке списка docs.
+     * Для документов, которые не удалось подписать, сериализовать или записать в журнал, слот не резервируется,
+     * а их future завершаются с ошибкой.
+     * Если очередь ограничена, пачка идет частями: часть занимает свободные места, планируется,
+     * и только потом занимаются места для следующей. Место освобождается, когда запланированная посылка
+     * стартует, поэтому пачка больше емкости очереди не может ждать мест, которые держит сама.
+     * Ожидать места по политике (BLOCK, а для CALLER_RUNS_LATER - сколько потребуется) можно только
+     * первому документу части. Отказанные документы получают future с RejectedExecutionException.
+     * При справедливом планировании документы пачки встают в очереди своих участников.
+     */
+    public List<CompletableFuture<HttpResponse<String>>> createDocs(List<Doc> docs,
+                                                                   Function<Doc, String> signatureProvider) {
+        List<CompletableFuture<HttpResponse<String>>> results = new ArrayList<>(docs.size());
+        for (int i = 0; i < docs.size(); i++) {
+            metrics.submitted();
+            results.add(new CompletableFuture<>());
+        }
+        long submitTime = System.nanoTime();
+        List<PendingQueue.Entry> entries = new ArrayList<>(docs.size());
+        int from = 0;
+        while (from < docs.size()) {
+            int to;
+            if (pendingQueue == null) {
+                entries.addAll(Collections.nCopies(docs.size(), null));
+                to = docs.size();
+            } else {
+                to = admitPart(from, results, entries);
+            }
+            schedulePart(docs.subList(from, to), signatureProvider, results.subList(from, to),
+                    entries.subList(from, to), submitTime);
+            from = to;
+        }
+        return results;
+    }
+
+    //Занимает места в ограниченной очереди для документов пачки, начиная с from, пока места есть без ожидания.
+    //Возвращает конец части. Отказанные документы получают ошибку и место в части без entry
+    private int admitPart(int from, List<CompletableFuture<HttpResponse<String>>> results,
+                          List<PendingQueue.Entry> entries) {
+        boolean holding = false; //часть уже держит места, ждать новых нельзя
+        int to = from;
+        for (; to < results.size(); to++) {
+            CompletableFuture<HttpResponse<String>> result = results.get(to);
+            Runnable onDrop = () -> dropped(result);
+            PendingQueue.Entry entry = null;
+            try {
+                if (holding) {
+                    entry = pendingQueue.tryAdmit(0, TimeUnit.NANOSECONDS, onDrop);
+                    if (entry == null) {
+                        break; //мест нет - сначала планируем эту часть, ее посылки освободят места
+                    }
+                } else {
+                    entry = (pendingQueue.getPolicy() == PendingQueue.OverloadPolicy.CALLER_RUNS_LATER)
+                            ? pendingQueue.admitBlocking(onDrop) : pendingQueue.admit(onDrop);
+                    holding = true;
+                }
+            } catch (RejectedExecutionException | InterruptedException e) {
+                if (e instanceof InterruptedException) {
+                    currentThread().interrupt();
+                }
+                fail(result, e);
+            }
+            entries.add(entry);
+        }
+        return to;
+    }
+
+    //Подписывает, сериализует и планирует часть пачки. entries - занятые места в очереди или null
+    private void schedulePart(List<Doc> docs, Function<Doc, String> signatureProvider,
+                              List<CompletableFuture<HttpResponse<String>>> results,
+                              List<PendingQueue.Entry> entries, long submitTime) {
+        //сериализация и подпись - самая тяжелая часть подготовки, выполняем ее параллельно.
+        //Запись в журнал асинхронная: общий пул не ждет fsync
+        List<CompletableFuture<Outgoing>> requests = IntStream.range(0, docs.size()).parallel().mapToObj(i -> {
+            if (results.get(i).isDone()) { //документ не принят в очередь
+                return null;
+            }
+            Doc doc = docs.get(i);
+            String signature;
+            try {
+                signature = signatureProvider.apply(doc);
+            } catch (RuntimeException e) {
+                //ошибка подписи одного документа не должна сорвать всю пачку
+                logger.error(LocalTime.now() + " Ошибка подписи документа " + doc.doc_id, e);
+                release(entries.get(i));
+                fail(results.get(i), e);
+                return null;
+            }
+            try {
+                return prepareRequestAsync(signature, serialize(doc));
+            } catch (IOException e) {
+                logger.error(LocalTime.now() + " Ошибка сериализации документа " + doc.doc_id);
+                release(entries.get(i));
+                fail(results.get(i), e);
+                return null;
+            }
+        }).collect(Collectors.toList());
+        //слоты всей части резервируются за один шаг, когда все ее документы записаны в журнал.
+        //Это может случиться уже после возврата из createDocs, поэтому берем копии списков вызывающего
+        List<Doc> partDocs = new ArrayList<>(docs);
+        List<CompletableFuture<HttpResponse<String>>> partResults = new ArrayList<>(results);
+        List<PendingQueue.Entry> partEntries = new ArrayList<>(entries);
+        CompletableFuture.allOf(requests.stream().filter(Objects::nonNull).toArray(CompletableFuture[]::new))
+                .whenComplete((v, e) -> schedulePrepared(partDocs, requests, partResults, partEntries, submitTime));
+    }
+
+    //Планирует подготовленную часть пачки. Документы, которые не удалось записать в журнал, получают ошибку
+    private void schedulePrepared(List<Doc> docs, List<CompletableFuture<Outgoing>> requests,
+                                  List<CompletableFuture<HttpResponse<String>>> results,
+                                  List<PendingQueue.Entry> entries, long submitTime) {
+        List<Runnable> tasks = new ArrayList<>(requests.size());
+        TenantScheduler fairScheduler = tenantScheduler;
+        for (int i = 0; i < requests.size(); i++) {
+            if (requests.get(i) == null) {
+                continue;
+            }
+            Outgoing outgoing;
             try {
+                outgoing = requests.get(i).join();
+            } catch (CompletionException e) {
+                if (entries.get(i) == null || entries.get(i).claim()) {
+                    fail(results.get(i), e.getCause());
+                }
+                continue;
+            }
+            Runnable task = whenClaimed(entries.get(i), outgoing, sendAsyncTask(outgoing, results.get(i), submitTime));
+            if (fairScheduler != null) {
+                fairScheduler.submit(tenantOf(docs.get(i)), task);
+            } else {
+                tasks.add(task);
+            }
+        }
+
+        long[] sendTimes = rateLimiter.reserve(tasks.size());
+        for (int i = 0; i < sendTimes.length; i++) {
+            schedule(tasks.get(i), sendTimes[i]);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug(LocalTime.now() + " Пачка из " + sendTimes.length + " документов запланирована к посылке");
+        }
+    }
+
+    //Задача, которая сначала отдает место в ограниченной очереди.
+    //Вытесненный запрос не посылается, а в журнале отмечается обработанным, чтобы не воскреснуть после рестарта
+    private Runnable whenClaimed(PendingQueue.Entry entry, Outgoing outgoing, Runnable task) {
+        if (entry == null) {
+            return task;
+        }
+        return () -> {
+            if (entry.claim()) {
+                task.run();
+            } else {
+                markSent(outgoing);
+            }
+        };
+    }
+
+    //Возвращаем место в очереди, если запрос до посылки не дошел.
+    //Возвращает false, если запрос уже вытеснен из очереди
+    private boolean release(PendingQueue.Entry entry) {
+        return entry == null || entry.claim() || isCallerRuns(entry);
+    }
+
+    //По политике CALLER_RUNS_LATER места не досталось - посылает вызывающий поток
+    private boolean isCallerRuns(PendingQueue.Entry entry) {
+        return pendingQueue != null && entry == pendingQueue.CALLER_RUNS;
+    }
+
+    //Запрос вытеснен из очереди более новым по политике DROP_OLDEST
+    private void dropped() {
+        metrics.failed();
+        logger.warn(LocalTime.now() + " Запрос вытеснен из переполненной очереди посылок");
+    }
+
+    //То же для асинхронного запроса: отказ получает его future
+    private void dropped(CompletableFuture<HttpResponse<String>> result) {
+        if (fail(result, new RejectedExecutionException("Запрос вытеснен из очереди более новым"))) {
+            logger.warn(LocalTime.now() + " Запрос вытеснен из переполненной очереди посылок");
+        }
+    }
+
+    //Завершает future запроса ошибкой. Неудача учитывается, только если future еще не был завершен:
+    //иначе документ, например вытесненный из очереди, а потом не подписанный, считался бы дважды
+    private boolean fail(CompletableFuture<HttpResponse<String>> result, Throwable e) {
+        if (!result.completeExceptionally(e)) {
+            return false;
+        }
+        metrics.failed();
+        return true;
+    }
+
+    //Задача синхронной посылки запроса, attempt - номер попытки.
+    //Результат ждать некому, поэтому окончательную ошибку только логируем
+    private Runnable sendTask(Outgoing outgoing, String threadName, long submitTime, int attempt) {
+        return () -> {
+            long sendStart = System.nanoTime();
+            if (attempt == 1) {
+                metrics.dequeued(sendStart - submitTime);
+            }
+            if (logger.isDebugEnabled()) {
                 logger.debug(LocalTime.now() + " Поставленная в очередь задача из потока " + threadName + " начала посылку запроса");
-                HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-                logger.debug(LocalTime.now() + " Поставленная в очередь задача из потока " + threadName + " послала запрос");
-                logger.trace("response.body() = " + response.body()); //приходит ошибка аутенификакции 401
-            } catch (InterruptedException | IOException e) {
+            }
+            HttpResponse<String> response = null;
+            IOException error = null;
+            try {
+                response = client.send(outgoing.request, HttpResponse.BodyHandlers.ofString());
+            } catch (IOException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                metrics.failed();
+                logger.error(LocalTime.now() + " Посылка запроса из задачи потока " + threadName + " прервана");
+                return;
+            }
+            long retryDelay = retryPolicy.retryDelay(attempt, response, error, rateLimiter);
+            if (retryDelay >= 0) {
+                metrics.retried();
+                scheduleRetry(sendTask(outgoing, threadName, submitTime, attempt + 1), retryDelay);
+            } else if (error != null) {
+                metrics.failed();
+                markFailed(outgoing);
                 logger.error(LocalTime.now() + " Ошибка при посылке запроса из задачи потока " + threadName);
+            } else {
+                metrics.sent(System.nanoTime() - sendStart);
+                markSent(outgoing);
+                if (!RetryPolicy.isSuccess(response.statusCode())) {
+                    logger.error(LocalTime.now() + " Сервер отклонил запрос из задачи потока " + threadName
+                            + " со статусом " + response.statusCode());
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug(LocalTime.now() + " Поставленная в очередь задача из потока " + threadName + " послала запрос");
+                }
+                if (logger.isTraceEnabled()) {
+                    logger.trace("response.body() = " + response.body()); //приходит ошибка аутенификакции 401
+                }
             }
         };
+    }
 
-        //Следующий синхронизированный блок нужен для правильного расчета времени запуска,
-        //который обращается к общему массиву для чтения и записи
-        long waitingTime;
-        synchronized (this) {
-            logger.debug(LocalTime.now() + " Поток " + threadName + " зашел в синхронизированный блок для постановки задачи в очередь");
-            //Определяем величину задержки перед отправкой,
-            //требуемой для соблюдения количества отправок в единицу времени.
-            //Для этого посмотрим на ячейку массива, следующую после последней отправки
-            //Там лежит время отправки запроса, отправленного  requestLimit попыток назад от текущего.
-            //Это самое старое время из всех хранимых в массиве (из-за кольцевой формы его записи)
-            //Текущая отправка должна произойти не раньше, чем TimeUnit после этого времени.
-            //Задержка в пуле хранится с точностью до наносекунд. Так и считаем, и записываем
-            long now = System.nanoTime();
-            long elapsedTime = now - sendTimes.get(nextIndex(lastSendTimeIndex));
-            waitingTime = timeUnit.toNanos(1) - elapsedTime;
-            waitingTime = (waitingTime < 0) ? 0 : waitingTime;
-
-            //сдвигаем вперед указатель элемента массива для последней посылки запроса
-            lastSendTimeIndex = nextIndex(lastSendTimeIndex);
-            //записываем в массив время будущего запуска запроса
-            sendTimes.set(lastSendTimeIndex, now + waitingTime);
-            executor.schedule(task, waitingTime, TimeUnit.NANOSECONDS);
-        }  //конец синхронизированного блока
-        logger.debug(LocalTime.now() + " Поток " + threadName +
-                " поставил задачу в очередь на "+LocalTime.now().plusNanos(waitingTime)+
-                ". Планируемая задержка - " + waitingTime + " нс");
-    }
-    //Обследование показало, что точность запуска назначенных заданий весьма невелика
-    //и отставание от плана может быть несколько десятых секунды
-}
+    //Задача асинхронной посылки запроса. Ответ или ошибку передаем в result.
+    //Окончательным ответом считается и неуспешный статус - его разбирает вызывающий
+    private Runnable sendAsyncTask(Outgoing outgoing, CompletableFuture<HttpResponse<String>> result,
+                                   long submitTime) {
+        return sendAsyncTask(outgoing, result, submitTime, 1);
+    }
+
+    private Runnable sendAsyncTask(Outgoing outgoing, CompletableFuture<HttpResponse<String>> result,
+                                   long submitTime, int attempt) {
+        return () -> {
+            if (result.isDone()) { //future отменили, пока задача ждала своей очереди
+                metrics.failed();
+                markSent(outgoing);
+                return;
+            }
+            long sendStart = System.nanoTime();
+            if (attempt == 1) {
+                metrics.dequeued(sendStart - submitTime);
+            }
+            client.sendAsync(outgoing.request, HttpResponse.BodyHandlers.ofString())
+                    .whenComplete((response, e) -> {
+                        long retryDelay = retryPolicy.retryDelay(attempt, response, e, rateLimiter);
+                        if (retryDelay >= 0) {
+                            metrics.retried();
+                            scheduleRetry(sendAsyncTask(outgoing, result, submitTime, attempt + 1), retryDelay);
+                        } else if (e != null) {
+                            markFailed(outgoing);
+                            fail(result, e);
+                        } else {
+                            metrics.sent(System.nanoTime() - sendStart);
+                            markSent(outgoing);
+                            result.complete(response);
+                        }
+                    });
+        };
+    }
+
+    //Повтор посылки: после паузы заново резервируем слот в ограничителе
+    private void scheduleRetry(Runnable task, long retryDelay) {
+        scheduler.schedule(() -> schedule(task), System.nanoTime() + retryDelay);
+    }
+
+    //Превращаем объект-параметр в json, записываем в журнал и готовим запрос
+    private Outgoing prepareRequest(Doc doc, String signature) throws IOException {
+        return prepareRequest(signature, serialize(doc));
+    }
+
+    private byte[] serialize(Doc doc) throws IOException {
+        long start = System.nanoTime();
+        byte[] json = serializer.serialize(doc);
+        metrics.serialized(System.nanoTime() - start);
+        return json;
+    }
+
+    //То же без ожидания fsync журнала: future завершится, когда документ будет на диске
+    private CompletableFuture<Outgoing> prepareRequestAsync(String signature, byte[] json) {
+        DocOutbox currentOutbox = outbox;
+        if (currentOutbox == null) {
+            return CompletableFuture.completedFuture(new Outgoing(requestFactory.create(signature, json), -1));
+        }
+        return currentOutbox.appendAsync(signature, json)
+                .thenApply(outboxId -> new Outgoing(requestFactory.create(signature, json), outboxId));
+    }
+
+    private Outgoing prepareRequest(String signature, byte[] json) throws IOException {
+        long outboxId = -1;
+        DocOutbox currentOutbox = outbox;
+        if (currentOutbox != null) {
+            try {
+                outboxId = currentOutbox.append(signature, json);
+            } catch (InterruptedException e) {
+                currentThread().interrupt();
+                throw new InterruptedIOException("Прервано ожидание записи документа в журнал");
+            }
+        }
+        return new Outgoing(requestFactory.create(signature, json), outboxId);
+    }
+
+    //Отмечаем документ в журнале, чтобы после рестарта он не был послан повторно
+    private void markSent(Outgoing outgoing) {
+        DocOutbox currentOutbox = outbox;
+        if (currentOutbox != null && outgoing.outboxId >= 0) {
+            try {
+                currentOutbox.markSent(outgoing.outboxId);
+            } catch (IOException e) {
+                logger.error(LocalTime.now() + " Не удалось отметить документ в журнале", e);
+            }
+        }
+    }
 
+    //Посылка окончательно не удалась и ошибку уже получил вызывающий (или лог) - документ в журнале больше не нужен
+    private void markFailed(Outgoing outgoing) {
+        DocOutbox currentOutbox = outbox;
+        if (currentOutbox != null && outgoing.outboxId >= 0) {
+            try {
+                currentOutbox.markFailed(outgoing.outboxId);
+            } catch (IOException e) {
+                logger.error(LocalTime.now() + " Не удалось отметить отказ документа в журнале", e);
+            }
+        }
+    }
+
+    //Ставим задачу в очередь участника документа, а без справедливого планирования - сразу на слот ограничителя.
+    //Возвращаем запланированную задержку в наносекундах или 0, если момент посылки еще не известен
+    private long dispatch(Doc doc, Runnable task) {
+        TenantScheduler fairScheduler = tenantScheduler;
+        if (fairScheduler != null) {
+            fairScheduler.submit(tenantOf(doc), task);
+            return 0;
+        }
+        return schedule(task);
+    }
+
+    private static String tenantOf(Doc doc) {
+        return (doc.participant_inn != null) ? doc.participant_inn : doc.owner_inn;
+    }
+
+    //Резервируем слот в ограничителе и ставим задачу в планировщик на этот момент.
+    //Возвращаем запланированную задержку в наносекундах
+    private long schedule(Runnable task) {
+        return schedule(task, rateLimiter.reserve());
+    }
+
+    //Ставим задачу в планировщик на зарезервированный момент
+    private long schedule(Runnable task, long sendTime) {
+        long waitingTime = sendTime - System.nanoTime();
+        waitingTime = (waitingTime < 0) ? 0 : waitingTime;
+        scheduler.schedule(() -> start(task, sendTime), sendTime);
+        return waitingTime;
+    }
+
+    //Слот наступил, и задача началась в исполнителе. Если окно фактических посылок еще занято
+    //(задача стартовала позже слота), откладываем ее, не теряя слота. Если с момента резервирования
+    //включилась пауза, по старому слоту не посылаем: задача встает в displaced и уходит по ближайшему
+    //действующему слоту раньше задач, стоящих за ней, а новый слот резервируется в конце очереди
+    //для последней из них. Так пауза не меняет порядок посылок
+    private void start(Runnable task, long sendTime) {
+        if (task == NO_TASK && displaced.isEmpty()) {
+            return; //пропавшие слоты уже заменены - этот слот никому не нужен
+        }
+        long waitingTime = rateLimiter.tryStart(sendTime);
+        if (waitingTime > 0) {
+            scheduler.schedule(() -> start(task, sendTime), System.nanoTime() + waitingTime);
+            return;
+        }
+        if (waitingTime < 0) {
+            if (task != NO_TASK) {
+                displaced.add(task);
+            }
+            schedule(NO_TASK);
+            return;
+        }
+        Runnable next = displaced.poll();
+        if (next == null) {
+            next = task;
+        } else if (task != NO_TASK) {
+            displaced.add(task); //задачи из displaced стояли в очереди раньше этой
+        }
+        if (next != NO_TASK) {
+            onSlot(next, sendTime).run();
+        }
+    }
+
+    //Задача, которая при запуске учитывает в метриках опоздание относительно слота sendTime
+    private Runnable onSlot(Runnable task, long sendTime) {
+        return () -> {
+            metrics.admitted(System.nanoTime() - sendTime);
+            task.run();
+        };
+    }
+
+    /**
+     * Среднее отставание фактического запуска посылок от зарезервированного момента, нс.
+     */
+    public long getMeanDispatchLagNanos() {
+        return scheduler.getMeanLagNanos();
+    }
+
+    /**
+     * Наибольшее отставание фактического запуска посылок от зарезервированного момента, нс.
+     */
+    public long getMaxDispatchLagNanos() {
+        return scheduler.getMaxLagNanos();
+    }
+
+    /**
+     * Метрики клиента. В JMX они появляются только после getMetrics().register().
+     */
+    public CrptApiMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+}
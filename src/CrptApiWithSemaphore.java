@@ -1,18 +1,17 @@
 import java.io.IOException;
-import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.time.LocalTime;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.LocalTime;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import static java.lang.Thread.currentThread;
-import static java.lang.Thread.sleep;
 
 /*  Первый вариант решения задачи.
     Все потоки пытаются пройти светофор с количеством пермитов requestLimit.
@@ -25,67 +24,220 @@ import static java.lang.Thread.sleep;
     Избежать этой задержки, даже если последующих потоков нет, нельзя. Текущий поток не знает,
     вдруг в последний момент создаваемого им окна нагрянет толпа страждущих послать запрос потоков
     и светофор должен отделить из них строго limit-1, а еще следующий - задержать.
+
+    Теперь допуск к отправке выполняет общий RateLimiter, поэтому досыпать после посылки не нужно.
+    Светофор остался и ограничивает число одновременно ожидающих и посылающих потоков
+    величиной requestLimit, в справедливой очереди.
+
+    Если задан бюджет задержки, число потоков, ожидающих перед светофором и ограничителем,
+    ограничивается PendingQueue, а при переполнении действует выбранная OverloadPolicy.
  */
 
 public class CrptApiWithSemaphore { //все поля можно сделать финальными для надежности
     private TimeUnit timeUnit; //инициализируется в конструкторе
-    private ObjectMapper objectMapper = new ObjectMapper();
+    private DocSerializer serializer = new DocSerializer(); //пишет документ сразу в байты
     private Semaphore semaphore; //количество пермитов задается в конструкторе при создании семафора
+    private RateLimiter rateLimiter; //ограничитель частоты отправок. Создается в конструкторе
+    private RetryPolicy retryPolicy = new RetryPolicy(); //правила повтора неудачных посылок
+    private PendingQueue pendingQueue; //ограничение числа ожидающих потоков. Если null - не ограничено
+    private CrptApiMetrics metrics = new CrptApiMetrics("CrptApiWithSemaphore@"
+            + Integer.toHexString(System.identityHashCode(this)));
     private Logger logger = Logger.getLogger(CrptApiWithSemaphore.class);
-    private String URL = "https://ismp.crpt.ru/api/v3/lk/documents/create"; //может быть параметром конструктора
-    private HttpRequest.Builder builder = HttpRequest
-            .newBuilder().uri(URI.create(URL)).timeout(Duration.ofSeconds(10));
-    private HttpClient client = HttpClient.newHttpClient();
+    private String URL = "https://ismp.crpt.ru/api/v3/lk/documents/create"; //адрес по умолчанию
+    private RequestFactory requestFactory; //инициализируется в конструкторе
+    private HttpClient client = RequestFactory.newHttpClient(null); //HTTP/2, ответы в собственном пуле клиента
 
     public CrptApiWithSemaphore(TimeUnit timeUnit, int requestLimit) {
-        this.timeUnit = timeUnit;
-        semaphore = new Semaphore(requestLimit, true); //справедливая очередь
+        this(timeUnit, requestLimit, null);
+    }
+
+    //адрес можно подменить, например, на локальную заглушку для замеров
+    public CrptApiWithSemaphore(TimeUnit timeUnit, int requestLimit, String url) {
+        this(new RateLimiter(timeUnit, requestLimit), url);
+    }
+
+    /**
+     * rateLimiter - ограничитель, в том числе с общим для нескольких JVM хранилищем слотов.
+     */
+    public CrptApiWithSemaphore(RateLimiter rateLimiter, String url) {
+        this(rateLimiter, url, null, null);
+    }
+
+    /**
+     * latencyBudget - сколько документ может ждать посылки. Из него и частоты посылок
+     * считается, сколько потоков могут ждать одновременно. Если latencyBudget равен null, число не ограничено.
+     * policy - что делать при переполнении. По политике BLOCK ждем места не дольше latencyBudget.
+     */
+    public CrptApiWithSemaphore(RateLimiter rateLimiter, String url,
+                                Duration latencyBudget, PendingQueue.OverloadPolicy policy) {
+        pendingQueue = PendingQueue.forLatencyBudget(rateLimiter, latencyBudget, policy);
+        if (url != null) {
+            URL = url;
+        }
+        requestFactory = new RequestFactory(URL);
+        this.timeUnit = rateLimiter.getTimeUnit();
+        semaphore = new Semaphore(rateLimiter.getRequestLimit(), true); //справедливая очередь
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Метрики клиента. В JMX они появляются только после getMetrics().register().
+     */
+    public CrptApiMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
     }
 
     /**
      * Создание документа для ввода в оборот товара, произведенного в РФ.
      * Документ и подпись должны передаваться в метод в виде Java объекта и строки соответственно.
+     * Если число ожидающих потоков ограничено и очередь переполнена, поведение определяет OverloadPolicy:
+     * отказ или вытеснение - RejectedExecutionException, CALLER_RUNS_LATER - ожидание без места в очереди.
      */
     public void createDoc(Doc doc, String signature)
             throws InterruptedException, IOException {
+        metrics.submitted();
+        PendingQueue.Waiter waiter = null;
+        if (pendingQueue != null) {
+            try {
+                waiter = pendingQueue.admitWaiter();
+            } catch (RejectedExecutionException | InterruptedException e) {
+                metrics.failed();
+                throw e;
+            }
+        }
+        send(doc, signature, waiter);
+    }
+
+    /**
+     * Создание документа с ожиданием места в ограниченной очереди не дольше timeout.
+     * Возвращает false, если место не освободилось и документ не послан.
+     * Политика переполнения здесь не применяется - вызывающий сам задал, сколько готов ждать.
+     */
+    public boolean tryCreateDoc(Doc doc, String signature, Duration timeout) throws InterruptedException, IOException {
+        metrics.submitted();
+        PendingQueue.Waiter waiter = null;
+        if (pendingQueue != null) {
+            try {
+                waiter = pendingQueue.tryAdmitWaiter(timeout.toNanos(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                metrics.failed();
+                throw e;
+            }
+            if (waiter == null) {
+                metrics.failed();
+                return false;
+            }
+        }
+        send(doc, signature, waiter);
+        return true;
+    }
+
+    //Посылка из вызывающего потока. waiter - занятое место в ограниченной очереди или null
+    private void send(Doc doc, String signature, PendingQueue.Waiter waiter) throws InterruptedException, IOException {
         String threadName = currentThread().getName();
-        logger.debug(LocalTime.now() + " Вызов метода createDoc из потока " + threadName);
-        //превращаем объект-параметр в json строку
-        String json = objectMapper.writeValueAsString(doc);
-        logger.trace("json = " + json);
-
-        //готовим запрос в синхронизированном блоке, т.к. методы builder - не синхронизированы
-        //и разные потоки могут помешать друг другу
-        HttpRequest request;
-        synchronized (this) {
-            request = builder.header("signature", signature)
-                    .POST(HttpRequest.BodyPublishers.ofString(json)).build();
+        if (logger.isDebugEnabled()) {
+            logger.debug(LocalTime.now() + " Вызов метода createDoc из потока " + threadName);
+        }
+        long submitTime = System.nanoTime();
+        //превращаем объект-параметр в json
+        byte[] json;
+        try {
+            json = serializer.serialize(doc);
+        } catch (IOException e) {
+            if (waiter != null) {
+                waiter.release();
+            }
+            metrics.failed();
+            throw e;
+        }
+        metrics.serialized(System.nanoTime() - submitTime);
+        if (logger.isTraceEnabled()) {
+            logger.trace("json = " + new String(json, StandardCharsets.UTF_8));
+        }
+
+        //запрос собирается из копии неизменяемого шаблона, поэтому мьютекс не нужен
+        HttpRequest request = requestFactory.create(signature, json);
+        if (logger.isDebugEnabled()) {
+            logger.debug(LocalTime.now() + " Поток " + threadName + " - перед семафором");
         }
-        logger.debug(LocalTime.now() + " Поток " + threadName + " - перед семафором");
 
         //запрашиваем пермит
-        semaphore.acquire();
         try {
-            logger.debug(LocalTime.now() + " Поток " + threadName + " - прошел семафор и начинает посылку запроса");
-            long startTime = System.currentTimeMillis();
-            //посылаем запрос
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-            logger.trace("response.body() = " + response.body()); //приходит ошибка аутенификакции
-            logger.debug(LocalTime.now() + " Поток " + threadName + " послал запрос");
-            long endTime = System.currentTimeMillis();
-
-            //Теперь задача - захватить пермит светофора на время timeUnit,
-            //чтобы не допустить входа следующего потока после limit-1 следующих за текущим потоков.
-            //Захватывая пермит на период своего окна timeUnit и учитывая, что остальных пермитов limit-1,
-            //мы можем гарантировать, что в окне, образованном текущим потоком, будет не больше limit посылок.
-            //Часть времени потрачено на посылку. Остальное время - досыпаем, чтобы не освобождать пермит.
-            long waitingTime = timeUnit.toMillis(1) - endTime + startTime;
-            if (waitingTime > 0) {
-                sleep(waitingTime);
+            semaphore.acquire();
+        } catch (InterruptedException e) {
+            metrics.failed();
+            if (waiter != null) {
+                waiter.interrupted(e);
+            }
+            throw e;
+        }
+        boolean sent = false;
+        try {
+            HttpResponse<String> response = null;
+            for (int attempt = 1; ; attempt++) {
+                //Резервируем слот после семафора, чтобы ожидание пермита не сдвигало
+                //фактический момент посылки относительно зарезервированного
+                long sendTime;
+                try {
+                    sendTime = rateLimiter.acquire();
+                } catch (InterruptedException e) {
+                    if (waiter != null) {
+                        waiter.interrupted(e);
+                    }
+                    throw e;
+                }
+                if (waiter != null) {
+                    waiter.claim(); //место отдается в момент посылки, если его не вытеснили
+                }
+                long sendStart = System.nanoTime();
+                metrics.admitted(sendStart - sendTime);
+                if (attempt == 1) {
+                    metrics.dequeued(sendStart - submitTime);
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug(LocalTime.now() + " Поток " + threadName + " - прошел семафор и начинает посылку запроса");
+                }
+                //посылаем запрос
+                response = null; //ответ прошлой попытки не должен попасть в разбор ошибки этой
+                IOException error = null;
+                try {
+                    response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                } catch (IOException e) {
+                    error = e;
+                }
+                //при повторе заново проходим ограничитель - слот занимается только после паузы
+                long retryDelay = retryPolicy.retryDelay(attempt, response, error, rateLimiter);
+                if (retryDelay < 0) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    metrics.sent(System.nanoTime() - sendStart);
+                    sent = true;
+                    break;
+                }
+                metrics.retried();
+                TimeUnit.NANOSECONDS.sleep(retryDelay); //пермит светофора на время паузы не отдаем
+            }
+            if (!RetryPolicy.isSuccess(response.statusCode())) {
+                logger.error(LocalTime.now() + " Сервер отклонил запрос из потока " + threadName
+                        + " со статусом " + response.statusCode());
+            }
+            if (logger.isTraceEnabled()) {
+                logger.trace("response.body() = " + response.body()); //приходит ошибка аутенификакции
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug(LocalTime.now() + " Поток " + threadName + " послал запрос");
+                logger.debug(LocalTime.now() + " Метод createDoc закончил работу в потоке " + threadName);
             }
-            logger.debug(LocalTime.now() + " Метод createDoc закончил работу в потоке " + threadName);
         } finally {   //освобождаем пермит светофора штатно или в случае ошибки
             semaphore.release();
+            if (!sent) {
+                metrics.failed();
+            }
         }
     }
 }
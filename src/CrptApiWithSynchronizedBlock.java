@@ -1,20 +1,16 @@
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
-import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalTime;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import static java.lang.Thread.currentThread;
-import static java.lang.Thread.sleep;
-
-import java.util.concurrent.atomic.AtomicLongArray;
 
 /*  Второй вариант решения задачи.
     Времена посылки запросов запоминаются в кольцевом массиве емкостью requestLimit.
@@ -24,80 +20,211 @@ import java.util.concurrent.atomic.AtomicLongArray;
     В этом варианте, если потоки приходят редко,
     они нисколько не задерживаются, немедленно приступают к посылке и уходят без задержки.
     Однако, если существует очередь, то поток должен отстоять ее всю.
+
+    Кольцевой массив и расчет задержки вынесены в общий RateLimiter.
+    Поток резервирует слот без мьютекса и ждет своего момента, не мешая остальным потокам
+    резервировать следующие слоты.
+
+    Если задан бюджет задержки, число потоков, ожидающих посылки, ограничивается PendingQueue,
+    а при переполнении действует выбранная OverloadPolicy, как и в CrptApiWithScheduledThreadPool.
  */
 
 public class CrptApiWithSynchronizedBlock { //все поля можно сделать финальными для надежности
     private TimeUnit timeUnit; //инициализируется в конструкторе
-    private ObjectMapper objectMapper = new ObjectMapper();
-    //чтобы сделать ячейки массива волатильными используем не просто long[], а AtomicLongArray
-    private AtomicLongArray sendTimes; //массив для хранения времен отправок. Записывается по кольцу
-    private int lastSendTimeIndex = 0; //индекс ячейки массива, хранящей последнюю отправку
-
-    private int nextIndex(int index) { //индекс следующей ячейки массива. Считаем по кольцу
-        return (index == sendTimes.length() - 1) ? 0 : index + 1;
-    }
+    private DocSerializer serializer = new DocSerializer(); //пишет документ сразу в байты
+    private RateLimiter rateLimiter; //ограничитель частоты отправок. Создается в конструкторе
+    private RetryPolicy retryPolicy = new RetryPolicy(); //правила повтора неудачных посылок
+    private PendingQueue pendingQueue; //ограничение числа ожидающих потоков. Если null - не ограничено
+    private CrptApiMetrics metrics = new CrptApiMetrics("CrptApiWithSynchronizedBlock@"
+            + Integer.toHexString(System.identityHashCode(this)));
 
     private Logger logger = Logger.getLogger(CrptApiWithSynchronizedBlock.class);
-    private String URL = "https://ismp.crpt.ru/api/v3/lk/documents/create"; //может быть параметром конструктора
-    private HttpRequest.Builder builder = HttpRequest
-            .newBuilder().uri(URI.create(URL)).timeout(Duration.ofSeconds(10));
-    private HttpClient client = HttpClient.newHttpClient();
+    private String URL = "https://ismp.crpt.ru/api/v3/lk/documents/create"; //адрес по умолчанию
+    private RequestFactory requestFactory; //инициализируется в конструкторе
+    private HttpClient client = RequestFactory.newHttpClient(null); //HTTP/2, ответы в собственном пуле клиента
 
     public CrptApiWithSynchronizedBlock(TimeUnit timeUnit, int requestLimit) {
-        this.timeUnit = timeUnit;
-        //Размер массива для хранения времен отправок равен
-        //разрешенному количеству отправок в единицу времени.
-        sendTimes = new AtomicLongArray(requestLimit);
+        this(timeUnit, requestLimit, null);
+    }
+
+    //адрес можно подменить, например, на локальную заглушку для замеров
+    public CrptApiWithSynchronizedBlock(TimeUnit timeUnit, int requestLimit, String url) {
+        this(new RateLimiter(timeUnit, requestLimit), url);
+    }
+
+    /**
+     * rateLimiter - ограничитель, в том числе с общим для нескольких JVM хранилищем слотов.
+     */
+    public CrptApiWithSynchronizedBlock(RateLimiter rateLimiter, String url) {
+        this(rateLimiter, url, null, null);
+    }
+
+    /**
+     * latencyBudget - сколько документ может ждать посылки. Из него и частоты посылок
+     * считается, сколько потоков могут ждать одновременно. Если latencyBudget равен null, число не ограничено.
+     * policy - что делать при переполнении. По политике BLOCK ждем места не дольше latencyBudget.
+     */
+    public CrptApiWithSynchronizedBlock(RateLimiter rateLimiter, String url,
+                                        Duration latencyBudget, PendingQueue.OverloadPolicy policy) {
+        pendingQueue = PendingQueue.forLatencyBudget(rateLimiter, latencyBudget, policy);
+        if (url != null) {
+            URL = url;
+        }
+        requestFactory = new RequestFactory(URL);
+        this.timeUnit = rateLimiter.getTimeUnit();
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Метрики клиента. В JMX они появляются только после getMetrics().register().
+     */
+    public CrptApiMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
     }
 
     /**
      * Создание документа для ввода в оборот товара, произведенного в РФ.
      * Документ и подпись должны передаваться в метод в виде Java объекта и строки соответственно.
+     * Если число ожидающих потоков ограничено и очередь переполнена, поведение определяет OverloadPolicy:
+     * отказ или вытеснение - RejectedExecutionException, CALLER_RUNS_LATER - ожидание без места в очереди.
      */
     public void createDoc(Doc doc, String signature) throws InterruptedException, IOException {
+        metrics.submitted();
+        PendingQueue.Waiter waiter = null;
+        if (pendingQueue != null) {
+            try {
+                waiter = pendingQueue.admitWaiter();
+            } catch (RejectedExecutionException | InterruptedException e) {
+                metrics.failed();
+                throw e;
+            }
+        }
+        send(doc, signature, waiter);
+    }
+
+    /**
+     * Создание документа с ожиданием места в ограниченной очереди не дольше timeout.
+     * Возвращает false, если место не освободилось и документ не послан.
+     * Политика переполнения здесь не применяется - вызывающий сам задал, сколько готов ждать.
+     */
+    public boolean tryCreateDoc(Doc doc, String signature, Duration timeout) throws InterruptedException, IOException {
+        metrics.submitted();
+        PendingQueue.Waiter waiter = null;
+        if (pendingQueue != null) {
+            try {
+                waiter = pendingQueue.tryAdmitWaiter(timeout.toNanos(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                metrics.failed();
+                throw e;
+            }
+            if (waiter == null) {
+                metrics.failed();
+                return false;
+            }
+        }
+        send(doc, signature, waiter);
+        return true;
+    }
+
+    //Посылка из вызывающего потока. waiter - занятое место в ограниченной очереди или null
+    private void send(Doc doc, String signature, PendingQueue.Waiter waiter) throws InterruptedException, IOException {
         String threadName = currentThread().getName();
-        logger.debug(LocalTime.now() + " Вызов метода createDoc из потока " + threadName);
-        //превращаем объект-параметр в json строку
-        String json = objectMapper.writeValueAsString(doc);
-
-        //Готовим запрос в синхронизированном блоке, т.к. методы builder - не синхронизированы
-        //и разные потоки могут помешать друг другу
-        //Используем мьютекс любого произвольного общего объекта, чтобы разрешить другим потокам
-        //исполнять этот блок во время отправки запроса
-        HttpRequest request;
-        synchronized (timeUnit) {
-            request = builder.header("signature", signature)
-                    .POST(HttpRequest.BodyPublishers.ofString(json)).build();
+        if (logger.isDebugEnabled()) {
+            logger.debug(LocalTime.now() + " Вызов метода createDoc из потока " + threadName);
         }
-        logger.debug(LocalTime.now() + " Поток " + threadName + " - перед синхронизированным блоком");
-
-        //если нужна справедливая отправка, то вместо синхронизированого блока
-        //нужно использовать светофор с одним пермитом и fair=true
-        synchronized (this) {
-            //Синхронизированный блок нужен не только чтобы допустить к отправке с задержкой только один поток
-            //но и для правильного расчета задержки, который обращается к общему массиву для чтения и записи
-            logger.debug(LocalTime.now() + " Поток " + threadName + " - захватил мьютекс");
-            //Определяем величину задержки перед отправкой,
-            //требуемой для соблюдения количества отправок в единицу времени.
-            //Для этого посмотрим на ячейку массива, следующую после последней отправки
-            //Там лежит время отправки запроса, отправленного  requestLimit попыток назад от текущего.
-            //Это самое старое время из всех хранимых в массиве (из-за кольцевой формы его записи)
-            //Текущая отправка должна произойти не раньше, чем TimeUnit после этого времени.
-            long elapsedTime = System.currentTimeMillis() - sendTimes.get(nextIndex(lastSendTimeIndex));
-            long waitingTime = timeUnit.toMillis(1) - elapsedTime;
-
-            if (waitingTime > 0) {
-                sleep(waitingTime);
+        long submitTime = System.nanoTime();
+        //превращаем объект-параметр в json
+        byte[] json;
+        try {
+            json = serializer.serialize(doc);
+        } catch (IOException e) {
+            if (waiter != null) {
+                waiter.release();
             }
-            logger.debug(LocalTime.now() + " Поток " + threadName + " - допущен к отправке запроса."
-                    + "Ожидание составило - " + ((waitingTime > 0) ? waitingTime : 0) + " мс");
-            //сдвигаем вперед указатель элемента массива для последней посылки запроса
-            lastSendTimeIndex = nextIndex(lastSendTimeIndex);
-            //записываем в массив время допуска к посылке запроса
-            sendTimes.set(lastSendTimeIndex, System.currentTimeMillis());
-        }  //конец синхронизированного блока
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-        logger.debug(LocalTime.now() + " Метод createDoc послал запрос из потока " + threadName + " и закончил работу");
+            metrics.failed();
+            throw e;
+        }
+        metrics.serialized(System.nanoTime() - submitTime);
+
+        //Запрос собирается из копии неизменяемого шаблона, поэтому мьютекс не нужен
+        HttpRequest request = requestFactory.create(signature, json);
+        if (logger.isDebugEnabled()) {
+            logger.debug(LocalTime.now() + " Поток " + threadName + " - перед ограничителем частоты");
+        }
+
+        HttpResponse<String> response = null;
+        for (int attempt = 1; ; attempt++) {
+            //Резервируем слот и ждем разрешенного момента отправки без захвата мьютекса
+            long acquireStart = System.nanoTime();
+            long sendTime;
+            try {
+                sendTime = rateLimiter.acquire();
+                if (waiter != null) {
+                    waiter.claim(); //место отдается в момент посылки, если его не вытеснили
+                }
+            } catch (InterruptedException e) {
+                metrics.failed();
+                if (waiter != null) {
+                    waiter.interrupted(e);
+                }
+                throw e;
+            } catch (RejectedExecutionException e) {
+                metrics.failed();
+                throw e;
+            }
+            long sendStart = System.nanoTime();
+            long waitingTime = sendStart - acquireStart;
+            metrics.admitted(sendStart - sendTime);
+            if (attempt == 1) {
+                metrics.dequeued(sendStart - submitTime);
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug(LocalTime.now() + " Поток " + threadName + " - допущен к отправке запроса."
+                        + "Ожидание составило - " + TimeUnit.NANOSECONDS.toMillis(waitingTime) + " мс");
+            }
+            response = null; //ответ прошлой попытки не должен попасть в разбор ошибки этой
+            IOException error = null;
+            try {
+                response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            } catch (IOException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                metrics.failed();
+                throw e;
+            }
+            //при повторе заново проходим ограничитель - слот занимается только после паузы
+            long retryDelay = retryPolicy.retryDelay(attempt, response, error, rateLimiter);
+            if (retryDelay < 0) {
+                if (error != null) {
+                    metrics.failed();
+                    throw error;
+                }
+                metrics.sent(System.nanoTime() - sendStart);
+                break;
+            }
+            metrics.retried();
+            if (logger.isDebugEnabled()) {
+                logger.debug(LocalTime.now() + " Поток " + threadName + " повторит посылку через "
+                        + TimeUnit.NANOSECONDS.toMillis(retryDelay) + " мс, попытка " + attempt);
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(retryDelay);
+            } catch (InterruptedException e) {
+                metrics.failed();
+                throw e;
+            }
+        }
+        if (!RetryPolicy.isSuccess(response.statusCode())) {
+            logger.error(LocalTime.now() + " Сервер отклонил запрос из потока " + threadName
+                    + " со статусом " + response.statusCode());
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug(LocalTime.now() + " Метод createDoc послал запрос из потока " + threadName + " и закончил работу");
+        }
     }
 }
 
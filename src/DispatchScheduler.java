@@ -0,0 +1,147 @@
+import org.apache.log4j.Logger;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*  Точный планировщик посылок вместо ScheduledThreadPoolExecutor.
+    Замеры показали, что пул задач запускает задачи с отставанием до десятых долей секунды,
+    и эта часть окна timeUnit пропадает впустую.
+
+    Здесь задачи планируются на абсолютный момент в шкале System.nanoTime(), который выдал RateLimiter.
+    Единственный поток-диспетчер держит задачи в очереди по возрастанию момента запуска,
+    спит через LockSupport.parkNanos почти до ближайшего момента, а последние SPIN_NANOS
+    докручивает в активном ожидании. Сама задача не исполняется в диспетчере,
+    а передается исполнителю, чтобы синхронная посылка не задерживала следующие запуски.
+
+    Сам диспетчер постоянно не живет: он запускается при первой задаче
+    и завершается, если задач нет дольше KEEP_ALIVE_NANOS.
+    Фактическое отставание копится в статистике и меряется в момент, когда задача начала исполняться,
+    т.е. вместе с передачей исполнителю и запуском его потока. Поэтому исполнителю нужны заранее
+    запущенные потоки: кэширующий пул в холодном всплеске создает поток на каждую задачу,
+    и отставание растет с размером всплеска.
+ */
+public class DispatchScheduler {
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final long KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static class Task {
+        final Runnable runnable;
+        final long time; //запланированный момент запуска в шкале System.nanoTime()
+
+        Task(Runnable runnable, long time) {
+            this.runnable = runnable;
+            this.time = time;
+        }
+    }
+
+    private final Logger logger = Logger.getLogger(DispatchScheduler.class);
+    private final String name;
+    private final Executor executor; //исполнитель задач, которому диспетчер передает наступившие задачи
+    //новые задачи от любых потоков. Диспетчер перекладывает их в свою очередь по времени
+    private final ConcurrentLinkedQueue<Task> inbox = new ConcurrentLinkedQueue<>();
+    //очередь по возрастанию момента запуска. Трогает ее только поток-диспетчер
+    private final PriorityQueue<Task> queue = new PriorityQueue<>((a, b) -> Long.signum(a.time - b.time));
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile Thread dispatcher;
+
+    //статистика отставания. Пишут потоки исполнителя при запуске задачи, читать можно из любого потока
+    private final LongAdder startedCount = new LongAdder();
+    private final LongAdder totalLag = new LongAdder();
+    private final AtomicLong maxLag = new AtomicLong();
+
+    public DispatchScheduler(String name, Executor executor) {
+        this.name = name;
+        this.executor = executor;
+    }
+
+    /**
+     * Планирует запуск задачи на момент time в шкале System.nanoTime().
+     * Если момент уже наступил, задача передается исполнителю при ближайшем обходе очереди.
+     */
+    public void schedule(Runnable task, long time) {
+        inbox.add(new Task(task, time));
+        if (!running.get() && running.compareAndSet(false, true)) {
+            Thread thread = new Thread(this::dispatch, name);
+            dispatcher = thread;
+            thread.start();
+        } else {
+            //будим диспетчер - новая задача может оказаться раньше той, которую он ждет
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    /**
+     * Количество задач, которые исполнитель начал исполнять.
+     */
+    public long getDispatchedCount() {
+        return startedCount.sum();
+    }
+
+    /**
+     * Среднее отставание начала исполнения задачи от запланированного момента, нс.
+     */
+    public long getMeanLagNanos() {
+        long count = startedCount.sum();
+        return count == 0 ? 0 : totalLag.sum() / count;
+    }
+
+    /**
+     * Наибольшее отставание начала исполнения задачи от запланированного момента, нс.
+     */
+    public long getMaxLagNanos() {
+        return maxLag.get();
+    }
+
+    private void dispatch() {
+        while (true) {
+            for (Task task; (task = inbox.poll()) != null; ) {
+                queue.add(task);
+            }
+            Task head = queue.peek();
+            if (head == null) {
+                LockSupport.parkNanos(this, KEEP_ALIVE_NANOS);
+                if (inbox.isEmpty()) {
+                    //Сначала снимаем признак работы, потом еще раз смотрим входящие.
+                    //Если задача пришла в промежутке, ее автор либо увидит снятый признак и запустит
+                    //новый диспетчер, либо мы увидим задачу здесь и продолжим работу
+                    running.set(false);
+                    if (inbox.isEmpty() || !running.compareAndSet(false, true)) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            long remaining = head.time - System.nanoTime();
+            if (remaining > SPIN_NANOS) {
+                //спим почти до момента запуска. Проснуться можем и раньше - от новой задачи
+                LockSupport.parkNanos(this, remaining - SPIN_NANOS);
+                continue;
+            }
+            while (head.time - System.nanoTime() > 0) {
+                Thread.onSpinWait();
+            }
+            queue.poll();
+            Task task = head;
+            try {
+                executor.execute(() -> {
+                    started(System.nanoTime() - task.time);
+                    task.runnable.run();
+                });
+            } catch (RuntimeException e) {
+                logger.error("Исполнитель не принял задачу планировщика " + name, e);
+            }
+        }
+    }
+
+    private void started(long lag) {
+        startedCount.increment();
+        totalLag.add(lag);
+        maxLag.accumulateAndGet(lag, Math::max);
+    }
+}
@@ -0,0 +1,523 @@
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/*  Журнал исходящих документов на диске (write-ahead outbox).
+    Документы, ожидающие посылки, живут только в памяти и теряются при остановке JVM,
+    а при строгой квоте заново собрать и послать такой хвост дорого.
+
+    Перед постановкой в очередь сериализованный документ с подписью дописывается в журнал,
+    после посылки туда же дописывается отметка "послан". При старте непосланные документы
+    читаются из журнала (replay) и снова ставятся на посылку.
+
+    Журнал - это файлы-сегменты в каталоге, в которые только дописываем.
+    Записи копируются в общий буфер под мьютексом и уходят в FileChannel пачками.
+    Дорогой force (fsync) выполняет один поток-сборщик сразу для всех накопившихся записей
+    (group commit): поток, добавивший документ, ждет лишь ближайшего общего fsync,
+    поэтому журнал выдерживает десятки тысяч добавлений в секунду.
+    Асинхронное добавление (appendAsync) не ждет вовсе: его future завершает сборщик после fsync,
+    и к нему можно привязать постановку документа в очередь, не занимая поток.
+    Документ, посылка которого окончательно не удалась, отмечается записью "отказ" (markFailed):
+    ошибку уже получил вызывающий, и после рестарта документ не посылается. Без такой отметки
+    сегмент с ним и все более поздние сегменты лежали бы на диске до конца работы процесса.
+    Сегменты удаляются с самого старого, как только все документы в нем и в более ранних сегментах
+    посланы или отказаны.
+    Удалять сегмент "из середины" нельзя: в нем могут лежать отметки о посылке документов
+    из более ранних сегментов, и после перезапуска эти документы ушли бы повторно.
+
+    Формат записи: [int длина тела][int CRC32 тела][тело],
+    тело: [byte тип][long id] и для документа [int длина подписи][подпись UTF-8][json].
+    Типы: 1 - документ, 2 - отметка "послан", 3 - отметка "отказ".
+    Недописанная при аварии запись в хвосте сегмента не проходит проверку CRC и отбрасывается.
+
+    Ошибка записи или fsync переводит журнал в состояние отказа. Часть буфера могла уйти в файл,
+    и за недописанной записью replay не увидит ничего, поэтому дописывать сегмент дальше нельзя.
+    Ожидающие и новые добавления получают IOException, а вызывающий решает, посылать ли документ без журнала.
+ */
+public class DocOutbox implements Closeable {
+    private static final byte PAYLOAD = 1;
+    private static final byte SENT = 2;
+    private static final byte FAILED = 3;
+    private static final int HEADER_SIZE = 8;               //длина тела и CRC
+    private static final int BODY_HEADER_SIZE = 1 + 8;      //тип и id
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final String SUFFIX = ".outbox";
+
+    /**
+     * Непосланный документ, прочитанный из журнала при старте.
+     */
+    public static class Entry {
+        public final long id;
+        public final String signature;
+        public final byte[] json;
+
+        Entry(long id, String signature, byte[] json) {
+            this.id = id;
+            this.signature = signature;
+            this.json = json;
+        }
+    }
+
+    //Асинхронное добавление: номер записи и future, который завершится после ее fsync
+    private static class Pending {
+        final long ticket;
+        final long id;
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        Pending(long ticket, long id) {
+            this.ticket = ticket;
+            this.id = id;
+        }
+    }
+
+    private final Logger logger = Logger.getLogger(DocOutbox.class);
+    private final Path directory;
+    private final long segmentSize;
+    private final List<Entry> unsent;
+    //число непосланных документов в каждом сегменте
+    private final Map<Integer, AtomicInteger> unsentBySegment = new ConcurrentHashMap<>();
+
+    //поля ниже меняются только под мьютексом this
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+    private FileChannel channel;
+    private int segment;       //номер текущего сегмента
+    private int oldestSegment; //номер самого старого сегмента, который еще может лежать на диске
+    private long segmentBytes; //сколько байт уже записано в текущий сегмент
+    private int sequence;      //порядковый номер записи в сегменте, вместе с номером сегмента дает id
+    private long appended;     //сколько записей добавлено всего
+    private volatile boolean closed;
+    private volatile IOException failure; //первая ошибка записи. Если не null, журнал неисправен
+
+    private volatile long durable; //сколько записей гарантированно на диске
+    private final Object durableMonitor = new Object();
+    //асинхронные добавления, ждущие fsync, в порядке записей. Пополняется под мьютексом this
+    private final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<>();
+    private final Thread flusher;
+
+    /**
+     * Открывает журнал в каталоге directory, создавая его при необходимости,
+     * и читает из старых сегментов непосланные документы (см. getUnsent).
+     */
+    public DocOutbox(Path directory, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        unsent = replay();
+        openSegment(segment + 1);
+        deleteCompletedSegments(); //сегменты, в которых не осталось непосланных документов, больше не нужны
+        flusher = new Thread(this::flushLoop, "DocOutbox-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Непосланные документы, найденные в журнале при открытии, в порядке их добавления.
+     */
+    public List<Entry> getUnsent() {
+        return unsent;
+    }
+
+    /**
+     * Дописывает документ в журнал и ждет, пока запись попадет на диск.
+     * Возвращает id, по которому документ потом отмечается посланным.
+     */
+    public long append(String signature, byte[] json) throws IOException, InterruptedException {
+        long id;
+        long ticket;
+        synchronized (this) {
+            id = appendRecord(signature, json);
+            ticket = appended;
+        }
+        LockSupport.unpark(flusher);
+        awaitDurable(ticket);
+        return id;
+    }
+
+    /**
+     * Дописывает документ в журнал, не дожидаясь записи на диск.
+     * Возвращаемый future получает id, когда запись попадет на диск, или IOException, если журнал
+     * неисправен или закрыт раньше. Future завершает поток-сборщик, поэтому привязанные к нему
+     * действия должны быть короткими: пока они идут, следующий fsync не начнется.
+     */
+    public CompletableFuture<Long> appendAsync(String signature, byte[] json) {
+        Pending waiter;
+        synchronized (this) {
+            try {
+                long id = appendRecord(signature, json);
+                waiter = new Pending(appended, id);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            pending.add(waiter); //под мьютексом, поэтому очередь идет по порядку записей
+        }
+        LockSupport.unpark(flusher);
+        return waiter.future;
+    }
+
+    //вызывается под мьютексом this. Кладет документ в буфер и возвращает его id
+    private long appendRecord(String signature, byte[] json) throws IOException {
+        byte[] sig = signature.getBytes(StandardCharsets.UTF_8);
+        ensureOpen();
+        int bodySize = BODY_HEADER_SIZE + 4 + sig.length + json.length;
+        reserveSpace(HEADER_SIZE + bodySize); //сегмент может смениться, поэтому id берем после
+        long id = nextId();
+        ByteBuffer body = ByteBuffer.allocate(bodySize);
+        body.put(PAYLOAD).putLong(id).putInt(sig.length).put(sig).put(json);
+        write(body);
+        unsentBySegment.computeIfAbsent(segment, s -> new AtomicInteger()).incrementAndGet();
+        return id;
+    }
+
+    /**
+     * Отмечает документ посланным. На диск отметка попадает с ближайшим общим fsync, ее не ждем:
+     * если она потеряется, документ будет послан повторно, но не пропадет.
+     */
+    public void markSent(long id) throws IOException {
+        markDone(id, SENT);
+    }
+
+    /**
+     * Отмечает документ, посылка которого окончательно не удалась. После рестарта он не посылается,
+     * а его сегмент можно удалить. На диск отметка попадает так же, как в markSent.
+     */
+    public void markFailed(long id) throws IOException {
+        markDone(id, FAILED);
+    }
+
+    private void markDone(long id, byte type) throws IOException {
+        int idSegment = (int) (id >>> 32);
+        synchronized (this) {
+            ensureOpen();
+            reserveSpace(HEADER_SIZE + BODY_HEADER_SIZE);
+            ByteBuffer body = ByteBuffer.allocate(BODY_HEADER_SIZE);
+            body.put(type).putLong(id);
+            write(body);
+        }
+        AtomicInteger count = unsentBySegment.get(idSegment);
+        if (count != null && count.decrementAndGet() == 0) {
+            deleteCompletedSegments();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        boolean forced = false;
+        try {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    if (failure == null) {
+                        flushBuffer();
+                        try {
+                            channel.force(false);
+                        } catch (IOException e) {
+                            throw fail(e);
+                        }
+                        forced = true;
+                    }
+                } finally {
+                    flusher.interrupt();
+                    channel.close();
+                }
+            }
+        } finally {
+            //сборщик уже остановлен, поэтому будим ждущих записи на диск сами при любом исходе
+            if (forced) {
+                setDurable(appended);
+            } else {
+                setDurable(durable);
+            }
+            completePending();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Журнал " + directory + " закрыт");
+        }
+        if (failure != null) {
+            throw new IOException("Журнал " + directory + " неисправен после ошибки записи", failure);
+        }
+    }
+
+    //Переводит журнал в состояние отказа и будит ждущих записи на диск. Возвращает e для throw
+    private IOException fail(IOException e) {
+        synchronized (durableMonitor) {
+            if (failure == null) {
+                failure = e;
+                logger.error("Ошибка записи журнала " + directory + ", журнал больше не принимает документы", e);
+            }
+            durableMonitor.notifyAll();
+        }
+        return e;
+    }
+
+    //вызывается под мьютексом this
+    private long nextId() {
+        return ((long) segment << 32) | (sequence++ & 0xFFFFFFFFL);
+    }
+
+    //вызывается под мьютексом this. Если запись не помещается в текущий сегмент, начинаем следующий
+    private void reserveSpace(int recordSize) throws IOException {
+        long used = segmentBytes + buffer.position();
+        if (used + recordSize > segmentSize && used > 0) {
+            rotate();
+        }
+    }
+
+    //вызывается под мьютексом this. Кладет запись с заголовком в буфер
+    private void write(ByteBuffer body) throws IOException {
+        body.flip();
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        int recordSize = HEADER_SIZE + body.remaining();
+        if (buffer.remaining() < recordSize) {
+            flushBuffer();
+            if (buffer.capacity() < recordSize) { //документ больше буфера - пишем мимо него
+                ByteBuffer record = ByteBuffer.allocate(recordSize);
+                record.putInt(body.remaining()).putInt((int) crc.getValue()).put(body).flip();
+                writeFully(record);
+                appended++;
+                return;
+            }
+        }
+        buffer.putInt(body.remaining()).putInt((int) crc.getValue()).put(body);
+        appended++;
+    }
+
+    //вызывается под мьютексом this
+    //После ошибки буфер тоже очищается: иначе он остался бы в режиме чтения, и следующая запись затерла бы его
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        try {
+            writeFully(buffer);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        try {
+            while (data.hasRemaining()) {
+                segmentBytes += channel.write(data);
+            }
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+    //вызывается под мьютексом this. Закрываем заполненный сегмент и открываем следующий
+    private void rotate() throws IOException {
+        try {
+            flushBuffer();
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            throw fail(e);
+        }
+        setDurable(appended);
+        LockSupport.unpark(flusher); //асинхронные добавления завершит сборщик, а не поток под мьютексом
+        try {
+            openSegment(segment + 1);
+        } catch (IOException e) {
+            throw fail(e);
+        }
+        deleteCompletedSegments();
+    }
+
+    private void openSegment(int number) throws IOException {
+        segment = number;
+        sequence = 0;
+        segmentBytes = 0;
+        channel = FileChannel.open(segmentPath(number),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    //Удаляем сегменты с самого старого, пока в них нет непосланных документов
+    private synchronized void deleteCompletedSegments() {
+        while (oldestSegment < segment) {
+            AtomicInteger count = unsentBySegment.get(oldestSegment);
+            if (count != null && count.get() > 0) {
+                return;
+            }
+            unsentBySegment.remove(oldestSegment);
+            try {
+                Files.deleteIfExists(segmentPath(oldestSegment));
+            } catch (IOException e) {
+                logger.warn("Не удалось удалить сегмент журнала " + segmentPath(oldestSegment), e);
+                return;
+            }
+            oldestSegment++;
+        }
+    }
+
+    private Path segmentPath(int number) {
+        return directory.resolve(String.format("%010d%s", number, SUFFIX));
+    }
+
+    private void awaitDurable(long ticket) throws IOException, InterruptedException {
+        synchronized (durableMonitor) {
+            while (durable < ticket) {
+                if (failure != null) {
+                    throw new IOException("Документ не записан в журнал " + directory + " из-за ошибки записи", failure);
+                }
+                if (closed) {
+                    throw new IOException("Журнал " + directory + " закрыт до записи документа на диск");
+                }
+                durableMonitor.wait();
+            }
+        }
+    }
+
+    //Поток-сборщик: раз в FLUSH_INTERVAL_NANOS или по сигналу пишет буфер и делает один fsync на всех
+    private void flushLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(this, FLUSH_INTERVAL_NANOS);
+                completePending(); //записи, ушедшие на диск при смене сегмента
+                FileChannel toForce;
+                long target;
+                synchronized (this) {
+                    if (closed || failure != null) {
+                        return;
+                    }
+                    if (durable == appended) {
+                        continue;
+                    }
+                    try {
+                        flushBuffer();
+                    } catch (IOException e) {
+                        return; //журнал переведен в отказ, ждущие разбужены
+                    }
+                    toForce = channel;
+                    target = appended;
+                }
+                try {
+                    toForce.force(false); //fsync вне мьютекса - добавлять записи можно и во время него
+                } catch (IOException e) {
+                    //канал могли закрыть при смене сегмента - тогда force уже выполнен там
+                    if (toForce.isOpen()) {
+                        fail(e);
+                        return;
+                    }
+                }
+                setDurable(target);
+                completePending();
+            }
+        } finally {
+            completePending(); //после отказа или закрытия оставшиеся добавления получают ошибку
+        }
+    }
+
+    //Завершает future асинхронных добавлений, чьи записи уже на диске, а после отказа или закрытия - все.
+    //Вызывается вне мьютексов: действия, привязанные к future, выполняются прямо здесь
+    private void completePending() {
+        for (Pending head; (head = pending.peek()) != null; ) {
+            IOException error = null;
+            if (head.ticket > durable) {
+                if (failure != null) {
+                    error = new IOException("Документ не записан в журнал " + directory + " из-за ошибки записи", failure);
+                } else if (closed) {
+                    error = new IOException("Журнал " + directory + " закрыт до записи документа на диск");
+                } else {
+                    return;
+                }
+            }
+            if (pending.remove(head)) { //future завершает только тот поток, который убрал его из очереди
+                if (error != null) {
+                    head.future.completeExceptionally(error);
+                } else {
+                    head.future.complete(head.id);
+                }
+            }
+        }
+    }
+
+    private void setDurable(long target) {
+        synchronized (durableMonitor) {
+            if (durable < target) {
+                durable = target;
+            }
+            durableMonitor.notifyAll();
+        }
+    }
+
+    //Читаем все сегменты по порядку и собираем документы без отметки "послан"
+    private List<Entry> replay() throws IOException {
+        List<Path> segments;
+        try (Stream<Path> files = Files.list(directory)) {
+            segments = files.filter(f -> f.getFileName().toString().endsWith(SUFFIX))
+                    .sorted().collect(Collectors.toList());
+        }
+        Map<Long, Entry> pending = new LinkedHashMap<>();
+        oldestSegment = Integer.MAX_VALUE;
+        for (Path file : segments) {
+            String name = file.getFileName().toString();
+            int number = Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+            segment = Math.max(segment, number);
+            oldestSegment = Math.min(oldestSegment, number);
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+            while (data.remaining() >= HEADER_SIZE) {
+                int bodySize = data.getInt();
+                int crcValue = data.getInt();
+                if (bodySize < BODY_HEADER_SIZE || bodySize > data.remaining()) {
+                    break; //недописанная запись
+                }
+                ByteBuffer body = data.slice();
+                body.limit(bodySize);
+                data.position(data.position() + bodySize);
+                CRC32 crc = new CRC32();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != crcValue) {
+                    logger.warn("Поврежденная запись в сегменте журнала " + file + ", остаток сегмента пропущен");
+                    break;
+                }
+                byte type = body.get();
+                long id = body.getLong();
+                if (type == PAYLOAD) {
+                    byte[] sig = new byte[body.getInt()];
+                    body.get(sig);
+                    byte[] json = new byte[body.remaining()];
+                    body.get(json);
+                    pending.put(id, new Entry(id, new String(sig, StandardCharsets.UTF_8), json));
+                } else if (type == SENT || type == FAILED) {
+                    pending.remove(id);
+                }
+            }
+        }
+        for (Entry entry : pending.values()) {
+            unsentBySegment.computeIfAbsent((int) (entry.id >>> 32), s -> new AtomicInteger()).incrementAndGet();
+        }
+        if (oldestSegment == Integer.MAX_VALUE) {
+            oldestSegment = segment + 1; //журнал пуст
+        }
+        if (!pending.isEmpty()) {
+            logger.info("В журнале " + directory + " найдено непосланных документов: " + pending.size());
+        }
+        return Collections.unmodifiableList(new ArrayList<>(pending.values()));
+    }
+}
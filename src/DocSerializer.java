@@ -0,0 +1,75 @@
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*  Сериализация документа сразу в байты.
+    Раньше документ превращался в json строку, а BodyPublishers.ofString кодировал ее еще раз в байты.
+    Для документов с тысячами товаров это удваивало мусор на горячем пути.
+
+    Здесь ObjectWriter для Doc создается один раз (он потокобезопасен и кэширует сериализаторы),
+    а пишет он потоком прямо в буфер из общего ограниченного пула.
+    На запрос остается одна аллокация - массив байт точного размера для BodyPublishers.ofByteArray.
+    Копия нужна, т.к. асинхронная посылка читает тело уже после возврата из метода,
+    когда буфер может быть занят следующим документом.
+
+    Буферы не привязаны к потокам: ThreadLocal держал бы по буферу на каждый поток, когда-либо
+    сериализовавший документ, а это и общий пул, и потоки вызывающего, и виртуальные потоки,
+    и память под буферы росла бы с их числом. В пуле лежит не больше poolSize буферов.
+    Если свободного буфера нет, сериализация берет новый, а лишний буфер после нее просто выбрасывается.
+
+    Даты LocalDate пишем строкой вида 2024-01-31 через toString,
+    чтобы не тянуть отдельный модуль jackson-datatype-jsr310.
+ */
+public class DocSerializer {
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    //буфер больше этого размера после большого документа не оставляем себе, чтобы не держать память
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private final ObjectWriter writer;
+    private final BlockingQueue<ByteArrayOutputStream> buffers; //свободные буферы, не больше poolSize
+
+    public DocSerializer() {
+        this(2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * poolSize - сколько свободных буферов держать. Одновременно сериализовать может и больше потоков,
+     * но лишние буферы после них не сохраняются.
+     */
+    public DocSerializer(int poolSize) {
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("Размер пула буферов должен быть положительным: " + poolSize);
+        }
+        buffers = new ArrayBlockingQueue<>(poolSize);
+        SimpleModule dates = new SimpleModule();
+        dates.addSerializer(LocalDate.class, ToStringSerializer.instance);
+        ObjectMapper objectMapper = new ObjectMapper().registerModule(dates);
+        writer = objectMapper.writerFor(Doc.class);
+    }
+
+    /**
+     * Сериализует документ в json и возвращает байты в кодировке UTF-8.
+     */
+    public byte[] serialize(Doc doc) throws IOException {
+        ByteArrayOutputStream buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+        }
+        try {
+            writer.writeValue(buffer, doc);
+            return buffer.toByteArray();
+        } finally {
+            if (buffer.size() <= MAX_RETAINED_BUFFER_SIZE) {
+                buffer.reset(); //reset оставляет ранее выделенную емкость буфера
+                buffers.offer(buffer); //пул полон - буфер достанется сборщику мусора
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/*  Слоты ограничителя в общем файле - для нескольких JVM, которые делят одну квоту.
+    Файл лежит на общем для узлов хранилище и содержит то же кольцо времен допуска,
+    что и InMemoryRateLimitBackend: номер следующего билета и requestLimit времен.
+    Времена хранятся в наносекундах от эпохи (Instant.now()), т.к. System.nanoTime() у каждой JVM свой.
+
+    Чтобы не ходить в файл за каждым слотом, узел под FileChannel.lock() забирает сразу
+    пачку подряд идущих слотов и раздает их своим потокам из памяти.
+    Размер пачки следует за спросом узла: после простоя узел берет ровно столько слотов, сколько просят,
+    пачка, израсходованная целиком, удваивается до batchSize, а упущенные слоты уменьшают следующую пачку.
+    Иначе при редких запросах каждый из них забирал бы batchSize слотов, и почти все они пропадали бы.
+    Пачка - обычные билеты кольца, так что соблюдение лимита доказывается так же:
+    запросы одного класса по модулю requestLimit разнесены не меньше чем на период.
+    Промежуток gap между соседними слотами тоже считается по кольцу в файле, т.е. общий для всех узлов.
+
+    Слот нельзя использовать позже выданного времени - это может нарушить окно: фактические посылки
+    других узлов не видны, и задержать опоздавшую посылку по окну, как InMemoryRateLimitBackend, нельзя.
+    Поэтому взятые, но вовремя не использованные слоты (опоздание больше MAX_LATENESS_NANOS)
+    и слоты раньше паузы ограничителя выбрасываются, а посылка, начавшаяся позже, теряет слот (start).
+    Квота при этом теряется, но не превышается.
+    Если действующий промежуток изменился (throttle/recover), непотраченная пачка тоже выбрасывается.
+
+    Пауза (pauseUntil) и снижение лимита (throttle) хранятся в заголовке файла вместе с номером версии:
+    ответ 429 одному узлу приостанавливает и замедляет все узлы. Узел меняет их под блокировкой файла
+    (updateOverload), а чужие изменения видит при каждом обращении к файлу - т.е. не позже следующей пачки.
+    Пауза из заголовка применяется и при выдаче слотов из файла, даже если RateLimiter узла о ней еще не знает.
+
+    FileChannel.lock() принадлежит всей JVM: второй канал того же файла в этой же JVM получил бы
+    OverlappingFileLockException. Поэтому все экземпляры на одном файле в JVM (например, два клиента
+    с разными RateLimiter) перед блокировкой файла берут общий для этого файла монитор.
+
+    Часы узлов должны быть синхронизированы (NTP): расхождение часов на d сокращает
+    эффективный промежуток между запросами разных узлов на d. Поэтому промежуток в файле
+    увеличен на clockSkew. Даже у JVM на одном хосте пересчет времени от эпохи в шкалу
+    System.nanoTime() расходится на сотни микросекунд, так что по умолчанию запас 1 мс.
+    Файл не синхронизируется с диском: после сбоя хоста кольцо начнется заново.
+ */
+public class FileLeaseRateLimitBackend implements RateLimitBackend, Closeable {
+    private static final int MAGIC = 0x43524c32; //"CRL2"
+    private static final int TICKET = 8;          //следующий билет
+    private static final int VERSION = 16;        //версия состояния перегрузки, растет при каждом изменении
+    private static final int PAUSED_UNTIL = 24;   //пауза до, наносекунды от эпохи
+    private static final int LAST_THROTTLE = 32;  //последнее снижение лимита, наносекунды от эпохи
+    private static final int EFFECTIVE_LIMIT = 40;
+    private static final int HEADER_SIZE = 44;    //magic, requestLimit и поля выше
+    private static final long MAX_LATENESS_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long DEFAULT_CLOCK_SKEW_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    //мониторы файлов, открытых в этой JVM, по настоящему пути
+    private static final ConcurrentHashMap<Path, Object> FILE_MONITORS = new ConcurrentHashMap<>();
+
+    private final Path file;
+    private final int requestLimit;
+    private final int batchSize;
+    private final long clockSkew; //наносекунды
+    private final FileChannel channel;
+    private final ByteBuffer state;
+    private final Object fileMonitor; //общий для всех экземпляров на этом файле в JVM
+    //разность между временем от эпохи и System.nanoTime(). Считаем один раз, чтобы шкала не прыгала
+    private final long epochOffset;
+
+    //взятые, но еще не выданные слоты в шкале System.nanoTime(). Меняется только под мьютексом this
+    private final ArrayDeque<Long> leased = new ArrayDeque<>();
+    private long leasedPeriod;  //промежуток, с которым взята текущая пачка
+    private long leasedGap;     //промежуток между соседними слотами текущей пачки
+    private int leaseSize;      //размер последней пачки, 0 - пачек еще не было
+    private int expired;        //слотов последней пачки, упущенных по опозданию
+
+    //заголовок файла при последнем обращении к нему. Меняется только под мьютексом this
+    private long pausedUntil;       //наносекунды от эпохи
+    private long lastThrottle;      //наносекунды от эпохи
+    private int effectiveLimit;
+    private volatile long version;
+
+    /**
+     * file - общий файл кольца, все узлы должны передавать одинаковый requestLimit.
+     * batchSize - сколько слотов узел забирает за одно обращение к файлу при постоянном спросе.
+     */
+    public FileLeaseRateLimitBackend(Path file, int requestLimit, int batchSize) throws IOException {
+        this(file, requestLimit, batchSize, DEFAULT_CLOCK_SKEW_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * clockSkew - наибольшее ожидаемое расхождение часов узлов.
+     */
+    public FileLeaseRateLimitBackend(Path file, int requestLimit, int batchSize, long clockSkew, TimeUnit unit)
+            throws IOException {
+        if (requestLimit <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("requestLimit и batchSize должны быть положительными: "
+                    + requestLimit + ", " + batchSize);
+        }
+        this.file = file;
+        this.requestLimit = requestLimit;
+        this.batchSize = batchSize;
+        this.clockSkew = unit.toNanos(clockSkew);
+        Instant now = Instant.now();
+        epochOffset = now.getEpochSecond() * 1_000_000_000L + now.getNano() - System.nanoTime();
+        state = ByteBuffer.allocate(HEADER_SIZE + 8 * requestLimit);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            fileMonitor = FILE_MONITORS.computeIfAbsent(file.toRealPath(), path -> new Object());
+            synchronized (fileMonitor) {
+                FileLock lock = channel.lock();
+                try {
+                    if (channel.size() == 0) {
+                        //нулевые времена - давно прошедшие: первые requestLimit запросов не ждут окна,
+                        //паузы и снижения лимита не было
+                        state.clear();
+                        state.putInt(MAGIC).putInt(requestLimit);
+                        state.putInt(EFFECTIVE_LIMIT, requestLimit);
+                        state.clear();
+                        channel.write(state, 0);
+                    }
+                    readState();
+                } finally {
+                    lock.release();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized long reserve(long period, long gap, long notBefore) {
+        lease(1, period, gap, notBefore);
+        return leased.poll();
+    }
+
+    @Override
+    public synchronized long[] reserve(int count, long period, long gap, long notBefore) {
+        lease(count, period, gap, notBefore);
+        long[] sendTimes = new long[count];
+        for (int i = 0; i < count; i++) {
+            sendTimes[i] = leased.poll();
+        }
+        return sendTimes;
+    }
+
+    /**
+     * Фактические посылки других узлов этому узлу не видны, поэтому окно по ним не проверить.
+     * Слот годится только без опоздания, иначе пропадает.
+     */
+    @Override
+    public long start(long sendTime, long period) {
+        return (System.nanoTime() - sendTime <= MAX_LATENESS_NANOS) ? 0 : -1;
+    }
+
+    /**
+     * Читает заголовок файла, выполняет над ним update и записывает обратно, все под блокировкой файла.
+     */
+    @Override
+    public synchronized void updateOverload(Overload overload, Consumer<Overload> update) {
+        try {
+            synchronized (fileMonitor) {
+                FileLock lock = channel.lock();
+                try {
+                    readState();
+                    copyOverload(overload);
+                    if (update != null) {
+                        update.accept(overload);
+                        state.putLong(VERSION, state.getLong(VERSION) + 1);
+                        state.putLong(PAUSED_UNTIL, overload.pausedUntil + epochOffset);
+                        state.putLong(LAST_THROTTLE, overload.lastThrottle + epochOffset);
+                        state.putInt(EFFECTIVE_LIMIT, overload.effectiveLimit);
+                        state.clear();
+                        channel.write(state, 0);
+                        readHeader();
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось изменить состояние перегрузки в " + file, e);
+        }
+    }
+
+    @Override
+    public long overloadVersion() {
+        return version;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Оставляет в пачке только годные слоты и добирает из файла так, чтобы их было не меньше count.
+     */
+    private void lease(int count, long period, long gap, long notBefore) {
+        if (period != leasedPeriod || gap != leasedGap) {
+            leased.clear();
+            leasedPeriod = period;
+            leasedGap = gap;
+        }
+        long deadline = System.nanoTime() - MAX_LATENESS_NANOS;
+        for (Long head; (head = leased.peek()) != null && (head - deadline < 0 || head - notBefore < 0); ) {
+            if (head - deadline < 0) {
+                expired++;
+            }
+            leased.poll(); //слот упущен - выбрасываем, а не используем с опозданием
+        }
+        if (leased.size() >= count) {
+            return;
+        }
+        //спрос меньше пачки - уменьшаем ее на упущенные слоты, пачка израсходована - удваиваем
+        leaseSize = (expired > 0) ? Math.max(1, leaseSize - expired) : Math.min(batchSize, Math.max(1, 2 * leaseSize));
+        expired = 0;
+        try {
+            leaseFromFile(count - leased.size() + leaseSize - 1, period, gap, notBefore);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось взять слоты из " + file, e);
+        }
+    }
+
+    private void leaseFromFile(int count, long period, long gap, long notBefore) throws IOException {
+        //FileChannel.lock() разграничивает процессы, потоки этого экземпляра - мьютекс this,
+        //а экземпляры на одном файле в этой JVM - fileMonitor
+        synchronized (fileMonitor) {
+            FileLock lock = channel.lock();
+            try {
+                leaseFromFileLocked(count, period, gap, notBefore);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private void leaseFromFileLocked(int count, long period, long gap, long notBefore) throws IOException {
+        readState();
+        long ticket = state.getLong(TICKET);
+        long now = System.nanoTime() + epochOffset;
+        long notBeforeEpoch = notBefore + epochOffset;
+        //пауза, объявленная другим узлом, о которой RateLimiter этого узла еще не знает
+        if (pausedUntil - notBeforeEpoch > 0) {
+            notBeforeEpoch = pausedUntil;
+        }
+        //слот предыдущего билета. Билеты идут строго по порядку под блокировкой файла
+        long lastSendTime = state.getLong(HEADER_SIZE + 8 * (int) Math.floorMod(ticket - 1, (long) requestLimit));
+        for (int i = 0; i < count; i++, ticket++) {
+            int position = HEADER_SIZE + 8 * (int) (ticket % requestLimit);
+            long sendTime = state.getLong(position) + period + clockSkew;
+            if (sendTime - now < 0) {
+                sendTime = now;
+            }
+            if (sendTime - (lastSendTime + gap) < 0) {
+                sendTime = lastSendTime + gap;
+            }
+            if (sendTime - notBeforeEpoch < 0) {
+                sendTime = notBeforeEpoch;
+            }
+            state.putLong(position, sendTime);
+            lastSendTime = sendTime;
+            leased.add(sendTime - epochOffset);
+        }
+        state.putLong(TICKET, ticket);
+        state.clear();
+        channel.write(state, 0);
+    }
+
+    private void readState() throws IOException {
+        state.clear();
+        while (state.hasRemaining() && channel.read(state, state.position()) >= 0) {
+        }
+        if (state.hasRemaining() || state.getInt(0) != MAGIC) {
+            throw new IllegalStateException("Файл " + file + " не является кольцом ограничителя");
+        }
+        if (state.getInt(4) != requestLimit) {
+            throw new IllegalStateException("Кольцо " + file + " создано для requestLimit=" + state.getInt(4)
+                    + ", а узел настроен на " + requestLimit);
+        }
+        readHeader();
+    }
+
+    //Запоминает состояние перегрузки из прочитанного заголовка
+    private void readHeader() {
+        pausedUntil = state.getLong(PAUSED_UNTIL);
+        lastThrottle = state.getLong(LAST_THROTTLE);
+        effectiveLimit = state.getInt(EFFECTIVE_LIMIT);
+        version = state.getLong(VERSION);
+    }
+
+    //Переносит запомненное состояние перегрузки в шкалу System.nanoTime()
+    private void copyOverload(Overload overload) {
+        overload.pausedUntil = pausedUntil - epochOffset;
+        overload.lastThrottle = lastThrottle - epochOffset;
+        overload.effectiveLimit = effectiveLimit;
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*  Слоты ограничителя в памяти процесса, без мьютексов и без ожидания других потоков.
+
+    Как и раньше, времена допуска к отправке хранятся в кольцевом массиве емкостью requestLimit.
+    Каждый запрос атомарно получает порядковый номер (билет) и тем самым ячейку кольца
+    с индексом билет % requestLimit. В этой ячейке лежит время допуска запроса,
+    получившего билет на requestLimit раньше. Текущий запрос должен быть допущен
+    не раньше, чем через период после этого времени.
+
+    Время билета зависит от предыдущих билетов, поэтому билеты заполняются строго по порядку:
+    счетчик filled показывает первый еще не заполненный билет. Ячейка - неизменяемая пара
+    (билет, время) и заменяется целиком через compareAndSet. Поток, которому нужен билет дальше filled,
+    не ждет его владельца, а сам заполняет очередной билет и двигает filled. Кто из потоков
+    заполнит билет, неважно: время считается по одному и тому же кольцу.
+    Поэтому вытесненный с процессора поток никого не задерживает. Если же поток простоял так долго,
+    что кольцо прошло целый круг и его ячейку занял билет на requestLimit дальше, время его билета
+    уже не узнать - он берет новый билет.
+
+    Корректность: запросы с билетами, равными по модулю requestLimit, разнесены во времени
+    не меньше чем на период. Значит в любое окно длиной в период попадает не больше
+    одного запроса из каждого такого класса, т.е. не больше requestLimit запросов.
+
+    Кольцо хранит выданные слоты, а посылка может начаться позже своего слота: таймер и исполнитель
+    не успевают запустить сотни посылок всплеска в одну миллисекунду. Поэтому фактические начала посылок
+    (start) учитываются во втором кольце того же устройства: начало с номером k допускается не раньше,
+    чем через окно после начала k - requestLimit. Опоздавшая посылка не теряет слот и не встает
+    в конец очереди, а ждет, пока окно фактических посылок ее допустит. Посылки, начавшиеся в пределах
+    запаса RateLimiter на опоздание, окно не задерживает: выданные слоты разнесены с этим запасом.
+ */
+public class InMemoryRateLimitBackend implements RateLimitBackend {
+    //Ячейка кольца: билет и его время допуска
+    private static final class Slot {
+        final long ticket;
+        final long sendTime;
+
+        Slot(long ticket, long sendTime) {
+            this.ticket = ticket;
+            this.sendTime = sendTime;
+        }
+    }
+
+    private final int requestLimit;
+    private final AtomicLong nextTicket = new AtomicLong(); //номер билета для следующего запроса
+    private final AtomicLong filled = new AtomicLong();     //билеты меньше этого номера уже получили время
+    private final AtomicReferenceArray<Slot> slots;        //последний заполненный билет каждой ячейки кольца
+    private final AtomicLong startCount = new AtomicLong(); //номер следующего фактического начала посылки
+    private final AtomicReferenceArray<Slot> starts;       //последние requestLimit фактических начал посылок
+
+    public InMemoryRateLimitBackend(TimeUnit timeUnit, int requestLimit) {
+        this.requestLimit = requestLimit;
+        slots = new AtomicReferenceArray<>(requestLimit);
+        //Считаем, что до создания ограничителя были "виртуальные" отправки с билетами -requestLimit..-1,
+        //случившиеся два timeUnit назад, т.е. первые requestLimit запросов не ждут ни окна,
+        //ни добавленного к нему запаса на опоздание, а только промежутка gap
+        long start = System.nanoTime() - 2 * timeUnit.toNanos(1);
+        starts = new AtomicReferenceArray<>(requestLimit);
+        for (int i = 0; i < requestLimit; i++) {
+            slots.set(i, new Slot(i - requestLimit, start));
+            starts.set(i, new Slot(i - requestLimit, start));
+        }
+    }
+
+    @Override
+    public long reserve(long period, long gap, long notBefore) {
+        return reserveTicket(nextTicket.getAndIncrement(), period, gap, notBefore);
+    }
+
+    /**
+     * Резервирует сразу count слотов одной атомарной операцией над счетчиком билетов.
+     */
+    @Override
+    public long[] reserve(int count, long period, long gap, long notBefore) {
+        long firstTicket = nextTicket.getAndAdd(count);
+        long[] sendTimes = new long[count];
+        for (int i = 0; i < count; i++) {
+            sendTimes[i] = reserveTicket(firstTicket + i, period, gap, notBefore);
+        }
+        return sendTimes;
+    }
+
+    /**
+     * Допускает начало посылки, если за последнее окно period фактически началось меньше requestLimit посылок.
+     * Иначе возвращает, сколько ждать до освобождения окна. Слот при этом не пропадает.
+     */
+    @Override
+    public long start(long sendTime, long period) {
+        while (true) {
+            long number = startCount.get();
+            int index = index(number);
+            Slot oldest = starts.get(index); //начало с номером number - requestLimit или уже сам number
+            if (oldest.ticket != number - requestLimit) {
+                startCount.compareAndSet(number, number + 1); //номер занят другим потоком - помогаем сдвинуть счетчик
+                continue;
+            }
+            long now = System.nanoTime();
+            long waitingTime = oldest.sendTime + period - now;
+            if (waitingTime > 0) {
+                return waitingTime;
+            }
+            if (starts.compareAndSet(index, oldest, new Slot(number, now))) {
+                startCount.compareAndSet(number, number + 1);
+                return 0;
+            }
+        }
+    }
+
+    private long reserveTicket(long ticket, long period, long gap, long notBefore) {
+        while (true) {
+            long next = filled.get();
+            if (ticket >= next) {
+                Slot slot = fill(next, period, gap, notBefore); //заполняем очередной билет, чей бы он ни был
+                if (slot != null && slot.ticket == ticket) {
+                    return slot.sendTime;
+                }
+                continue;
+            }
+            Slot slot = slots.get(index(ticket));
+            if (slot.ticket == ticket) {
+                return slot.sendTime;
+            }
+            //ячейку уже занял билет на круг дальше - время нашего билета потеряно, слот пропадает
+            ticket = nextTicket.getAndIncrement();
+        }
+    }
+
+    //Заполняет билет next, если его еще никто не заполнил, и двигает filled.
+    //Возвращает записанную ячейку или null, если билет заполнил другой поток
+    private Slot fill(long next, long period, long gap, long notBefore) {
+        int index = index(next);
+        Slot owner = slots.get(index); //прошлый владелец ячейки или уже сам билет next
+        Slot slot = null;
+        if (owner.ticket == next - requestLimit) {
+            //предыдущий билет заполнен раньше filled. При requestLimit = 1 это тот же owner
+            Slot previous = slots.get(index(next - 1));
+            if (previous.ticket != next - 1) {
+                return null; //кольцо уже ушло дальше - билет next заполнили
+            }
+            long now = System.nanoTime();
+            long sendTime = owner.sendTime + period;
+            //сравниваем через разность, т.к. значения nanoTime могут переполниться
+            if (sendTime - now < 0) {
+                sendTime = now;
+            }
+            if (sendTime - (previous.sendTime + gap) < 0) {
+                sendTime = previous.sendTime + gap;
+            }
+            if (sendTime - notBefore < 0) {
+                sendTime = notBefore;
+            }
+            slot = new Slot(next, sendTime);
+            if (!slots.compareAndSet(index, owner, slot)) {
+                slot = null; //проиграли - билет заполнил другой поток
+            }
+        }
+        filled.compareAndSet(next, next + 1);
+        return slot;
+    }
+
+    private int index(long ticket) {
+        return (int) Math.floorMod(ticket, (long) requestLimit);
+    }
+}
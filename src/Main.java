@@ -1,13 +1,49 @@
 import org.apache.log4j.BasicConfigurator;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
 
 import static java.lang.Thread.sleep;
 
 public class Main {
-    public static void main(String[] args) throws InterruptedException {
+    public static void main(String[] args) throws InterruptedException, IOException {
         BasicConfigurator.configure(); //чтобы заработал логгер
+        if (args.length > 0 && args[0].equals("modes")) {
+            compareDispatchModes(args.length > 1 ? Integer.parseInt(args[1]) : 1000,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 100);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("serialization")) {
+            compareSerialization(args.length > 1 ? Integer.parseInt(args[1]) : 1000);
+            return;
+        }
+        if (args.length > 4 && args[0].equals("lease")) {
+            runLeaseNode(Paths.get(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), Paths.get(args[4]));
+            return;
+        }
+        if (args.length > 2 && args[0].equals("check")) {
+            checkSendLogs(Integer.parseInt(args[1]), Arrays.copyOfRange(args, 2, args.length));
+            return;
+        }
 
         //Уточняю задачу, как я ее понял.
         //Момент посылки запроса - это время начала посылки.
@@ -19,6 +55,7 @@ public class Main {
         //CrptApiWithSemaphore crptApi = new CrptApiWithSemaphore(TimeUnit.SECONDS, 3);
         CrptApiWithSynchronizedBlock crptApi = new CrptApiWithSynchronizedBlock(TimeUnit.SECONDS, 3);
         //CrptApiWithScheduledThreadPool crptApi = new CrptApiWithScheduledThreadPool(TimeUnit.SECONDS, 3);
+        crptApi.getMetrics().register(); //пока демонстрация идет, метрики видны в jconsole
         Doc doc = new Doc();
         Runnable task = ()-> {  //создаем задачу лямбдой
             try {
@@ -28,9 +65,211 @@ public class Main {
             }
         };
         //запускаем 15 потоков через 0,2 сек
-        for (int i = 1; i <= 15; i++) {
-            new Thread(task,""+i).start(); //в качестве имени потока - его номер
+        Thread[] threads = new Thread[15];
+        for (int i = 1; i <= threads.length; i++) {
+            threads[i - 1] = new Thread(task,""+i); //в качестве имени потока - его номер
+            threads[i - 1].start();
             sleep(200);
         }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        crptApi.getMetrics().unregister();
+    }
+
+    //Сравнение режимов исполнения посылок в CrptApiWithScheduledThreadPool:
+    //исполнитель по умолчанию (пул заранее запущенных платформенных потоков) против виртуального потока на посылку.
+    //Виртуальные потоки есть только с Java 21. На более старой JVM virtualThreadExecutor() возвращает
+    //кэширующий пул платформенных потоков, и сравнение не показательно - об этом выводится предупреждение.
+    //Все документы ставятся в очередь из одного потока без создания потока на документ.
+    //Лимит меньше числа документов, так что документы действительно ждут своих слотов,
+    //а посылки идут на локальную заглушку. Смотрим прирост пикового количества платформенных потоков,
+    //время постановки в очередь и время, за которое ушли все документы.
+    //Заглушка Http2StubServer лежит в тестах и в рабочую сборку не входит, поэтому берем ее через рефлексию:
+    //  java -cp build/classes/java/main:build/classes/java/test:<зависимости> Main modes
+    private static void compareDispatchModes(int docCount, int requestLimit) throws InterruptedException, IOException {
+        Closeable server = startStubServer();
+        if (server == null) {
+            System.out.println("Заглушка Http2StubServer не найдена. Добавьте в classpath тестовые классы"
+                    + " (build/classes/java/test после gradle testClasses)");
+            return;
+        }
+        boolean virtual = CrptApiWithScheduledThreadPool.hasVirtualThreads();
+        if (!virtual) {
+            System.out.println("Внимание: в JVM " + Runtime.version() + " нет виртуальных потоков (нужна Java 21)."
+                    + " Второй режим исполняется в кэширующем пуле платформенных потоков");
+        }
+        ExecutorService virtualThreads = CrptApiWithScheduledThreadPool.virtualThreadExecutor();
+        try (server) {
+            String url = "http://127.0.0.1:" + stubPort(server) + "/api/v3/lk/documents/create";
+            runDispatchMode("пул платформенных потоков по умолчанию",
+                    new CrptApiWithScheduledThreadPool(TimeUnit.SECONDS, requestLimit, url, null), docCount);
+            runDispatchMode(virtual ? "виртуальные потоки" : "кэширующий пул вместо виртуальных потоков",
+                    new CrptApiWithScheduledThreadPool(TimeUnit.SECONDS, requestLimit, url, virtualThreads), docCount);
+        } finally {
+            virtualThreads.shutdown();
+        }
+    }
+
+    //Запускает заглушку без задержки ответа или возвращает null, если ее класса нет в classpath
+    private static Closeable startStubServer() throws IOException {
+        try {
+            return (Closeable) Class.forName("Http2StubServer").getConstructor(long.class).newInstance(0L);
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("Не удалось запустить Http2StubServer", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Не удалось запустить Http2StubServer", e);
+        }
+    }
+
+    private static int stubPort(Closeable server) {
+        try {
+            return (int) server.getClass().getMethod("getPort").invoke(server);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("У Http2StubServer нет getPort", e);
+        }
+    }
+
+    private static void runDispatchMode(String mode, CrptApiWithScheduledThreadPool crptApi, int docCount)
+            throws InterruptedException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        int startThreads = threads.getThreadCount(); //потоки предыдущего режима еще могут быть живы
+        Doc doc = new Doc();
+        CrptApiMetrics metrics = crptApi.getMetrics();
+        metrics.register();
+        long start = System.nanoTime();
+        long queued;
+        try {
+            for (int i = 0; i < docCount; i++) {
+                crptApi.createDoc(doc, "");
+            }
+            queued = System.nanoTime() - start;
+            while (metrics.getSent() + metrics.getFailed() < docCount) { //ждем, пока уйдут все документы
+                sleep(100);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            metrics.unregister();
+        }
+        long done = System.nanoTime() - start;
+        System.out.println("Режим: " + mode + ". Документов: " + docCount
+                + ". Постановка в очередь: " + TimeUnit.NANOSECONDS.toMillis(queued) + " мс"
+                + ". Все посланы за: " + TimeUnit.NANOSECONDS.toMillis(done) + " мс"
+                + ". Прирост пика платформенных потоков: " + (threads.getPeakThreadCount() - startThreads));
+    }
+
+    //Сравнение аллокаций на один документ: json строка с последующим кодированием в байты,
+    //как это делал BodyPublishers.ofString, против записи потоком в буфер из пула DocSerializer
+    private static void compareSerialization(int productCount) {
+        Doc doc = new Doc();
+        doc.doc_id = "doc";
+        doc.production_date = LocalDate.now();
+        doc.products = new Product[productCount];
+        for (int i = 0; i < productCount; i++) {
+            Product product = new Product();
+            product.uit_code = "0104600000000000" + i;
+            product.tnved_code = "6401100000";
+            product.production_date = LocalDate.now();
+            doc.products[i] = product;
+        }
+        DocSerializer serializer = new DocSerializer();
+        com.fasterxml.jackson.databind.ObjectMapper objectMapper = new com.fasterxml.jackson.databind.ObjectMapper()
+                .registerModule(new com.fasterxml.jackson.databind.module.SimpleModule().addSerializer(
+                        LocalDate.class, com.fasterxml.jackson.databind.ser.std.ToStringSerializer.instance));
+        int iterations = 2000;
+        for (int round = 0; round < 2; round++) { //первый проход - прогрев
+            long viaString = allocatedPerCall(iterations, () ->
+                    objectMapper.writeValueAsString(doc).getBytes(StandardCharsets.UTF_8));
+            long viaBuffer = allocatedPerCall(iterations, () -> serializer.serialize(doc));
+            if (round > 0) {
+                System.out.println("Товаров в документе: " + productCount
+                        + ". Аллокации через строку: " + viaString + " байт"
+                        + ". Через буфер DocSerializer: " + viaBuffer + " байт");
+            }
+        }
+    }
+
+    //Узел для проверки общего ограничителя на нескольких JVM:
+    //  java Main lease /tmp/crpt.ring 10 200 /tmp/node1.log   (запустить одновременно в нескольких процессах)
+    //  java Main check 10 /tmp/node1.log /tmp/node2.log ...
+    //Узел получает count слотов из общего файла в 4 потоках и пишет в свой журнал выданные моменты посылок.
+    //Опоздание пробуждения потока вычитаем: оно одинаково для любого хранилища слотов, проверяем само кольцо.
+    private static void runLeaseNode(Path ringFile, int requestLimit, int count, Path log) throws InterruptedException {
+        ConcurrentLinkedQueue<Long> sendTimes = new ConcurrentLinkedQueue<>();
+        AtomicInteger remaining = new AtomicInteger(count);
+        try (FileLeaseRateLimitBackend backend = new FileLeaseRateLimitBackend(ringFile, requestLimit, 4)) {
+            RateLimiter rateLimiter = new RateLimiter(TimeUnit.SECONDS, requestLimit, backend);
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(() -> {
+                    while (remaining.getAndDecrement() > 0) {
+                        long sendTime = rateLimiter.reserve();
+                        long waitingTime;
+                        while ((waitingTime = sendTime - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(waitingTime);
+                        }
+                        long lateness = System.nanoTime() - sendTime;
+                        Instant now = Instant.now();
+                        sendTimes.add(now.getEpochSecond() * 1_000_000_000L + now.getNano() - lateness);
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Files.write(log, sendTimes.stream().map(String::valueOf).collect(Collectors.toList()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //Сводит журналы узлов и проверяет, что ни в одно окно в 1 секунду не попало больше requestLimit посылок
+    private static void checkSendLogs(int requestLimit, String[] logs) {
+        List<Long> sendTimes = new ArrayList<>();
+        try {
+            for (String log : logs) {
+                Files.readAllLines(Paths.get(log)).forEach(line -> sendTimes.add(Long.parseLong(line)));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        Collections.sort(sendTimes);
+        long window = TimeUnit.SECONDS.toNanos(1);
+        int violations = 0;
+        for (int i = requestLimit; i < sendTimes.size(); i++) {
+            if (sendTimes.get(i) - sendTimes.get(i - requestLimit) < window) {
+                violations++;
+            }
+        }
+        long span = sendTimes.isEmpty() ? 0 : sendTimes.get(sendTimes.size() - 1) - sendTimes.get(0);
+        System.out.println("Посылок: " + sendTimes.size() + ". За " + TimeUnit.NANOSECONDS.toMillis(span) + " мс"
+                + ". Окон с превышением лимита: " + violations);
+    }
+
+    private interface Serialization {
+        byte[] run() throws IOException;
+    }
+
+    private static long allocatedPerCall(int iterations, Serialization serialization) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        try {
+            for (int i = 0; i < iterations; i++) {
+                serialization.run();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return (threads.getThreadAllocatedBytes(threadId) - before) / iterations;
     }
 }
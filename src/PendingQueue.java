@@ -0,0 +1,255 @@
+import java.time.Duration;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*  Ограничение числа запросов, ожидающих посылки.
+    Без него всплеск трафика превращается в неограниченную очередь задач, растут память
+    и задержка хвоста очереди, а производитель узнает об этом слишком поздно.
+
+    Емкость считается из допустимой задержки: за latencyBudget ограничитель пропустит
+    latencyBudget / timeUnit * requestLimit запросов, больше в очереди держать бессмысленно -
+    лишние все равно не уложатся в бюджет.
+
+    Место в очереди - это пермит светофора. Запрос занимает его при постановке
+    и отдает в момент посылки (claim) или при вытеснении (DROP_OLDEST).
+    Что делать, если мест нет, определяет OverloadPolicy.
+
+    В синхронных клиентах запрос ждет своего слота в вызывающем потоке, и место занимает сам поток (Waiter).
+    Вытеснение прерывает его ожидание, и вызывающий получает RejectedExecutionException.
+    CALLER_RUNS_LATER для них означает ждать слота, не занимая места: поток и так посылает сам.
+ */
+public class PendingQueue {
+    public enum OverloadPolicy {
+        BLOCK,             //ждать места не дольше blockTimeout, потом отказ
+        REJECT,            //сразу отказ
+        DROP_OLDEST,       //вытеснить самый старый ожидающий запрос и занять его место
+        CALLER_RUNS_LATER  //не ставить в очередь: вызывающий поток сам дождется своего момента и пошлет
+    }
+
+    /**
+     * Место в очереди. Отдается обратно при claim.
+     */
+    public class Entry {
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final Runnable onDrop;
+
+        private Entry(Runnable onDrop) {
+            this.onDrop = onDrop;
+        }
+
+        /**
+         * Вызывается в момент посылки. Возвращает false, если запрос уже вытеснен и посылать его не нужно.
+         */
+        public boolean claim() {
+            if (!claimed.compareAndSet(false, true)) {
+                return false;
+            }
+            permits.release();
+            //убираем из головы очереди уже посланные запросы, они идут в ней примерно по порядку
+            for (Entry head; (head = entries.peekFirst()) != null && head.claimed.get(); ) {
+                entries.remove(head);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Место потока синхронного клиента, который сам ждет своего слота.
+     * Если место вытеснят, ожидающий поток прерывается (run вызывается вытесняющим потоком).
+     * Ожидающий поток в момент посылки вызывает claim, а при InterruptedException - interrupted.
+     * После них прерывать поток больше нельзя, поэтому вытеснение не оставит ему лишнего флага прерывания.
+     */
+    public class Waiter implements Runnable {
+        private final Thread thread = Thread.currentThread();
+        private Entry entry;
+        private boolean done;  //поток закончил ожидание. Под мьютексом this
+        private boolean sent;  //поток дошел до посылки и отдал место
+
+        private Waiter() {
+        }
+
+        @Override
+        public synchronized void run() {
+            if (!done) {
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * Вызывается в момент посылки. Если место вытеснено, бросает RejectedExecutionException.
+         * Повторные вызовы (посылка повторяется) ничего не делают.
+         */
+        public void claim() {
+            finish();
+            if (sent || entry == CALLER_RUNS || entry.claim()) {
+                sent = true;
+                return;
+            }
+            Thread.interrupted(); //прерывание от вытеснения, если оно пришло уже после ожидания
+            throw new RejectedExecutionException("Запрос вытеснен из переполненной очереди посылок");
+        }
+
+        /**
+         * Вызывается, если ожидание потока прервано. Бросает RejectedExecutionException,
+         * если прерывание - это вытеснение, иначе отдает место и бросает e.
+         */
+        public void interrupted(InterruptedException e) throws InterruptedException {
+            finish();
+            if (sent || entry == CALLER_RUNS || entry.claim()) {
+                throw e;
+            }
+            Thread.interrupted();
+            throw new RejectedExecutionException("Запрос вытеснен из переполненной очереди посылок");
+        }
+
+        /**
+         * Отдает место, если запрос до посылки не дошел, например из-за ошибки сериализации.
+         */
+        public void release() {
+            finish();
+            if (!sent && entry != CALLER_RUNS && !entry.claim()) {
+                Thread.interrupted();
+            }
+        }
+
+        private synchronized void finish() {
+            done = true;
+        }
+    }
+
+    //Признак "место не выдано - посылает вызывающий поток" для политики CALLER_RUNS_LATER
+    public final Entry CALLER_RUNS = new Entry(null);
+
+    private final int capacity;
+    private final OverloadPolicy policy;
+    private final long blockTimeout; //наносекунды
+    private final Semaphore permits;
+    //ожидающие запросы по порядку постановки. Нужны только для вытеснения самого старого
+    private final ConcurrentLinkedDeque<Entry> entries = new ConcurrentLinkedDeque<>();
+
+    public PendingQueue(int capacity, OverloadPolicy policy, long blockTimeout, TimeUnit unit) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Емкость очереди должна быть положительной: " + capacity);
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.blockTimeout = unit.toNanos(blockTimeout);
+        permits = new Semaphore(capacity, true);
+        CALLER_RUNS.claimed.set(true);
+    }
+
+    /**
+     * Очередь, емкость которой считается из допустимой задержки latencyBudget и полного лимита rateLimiter.
+     * Возвращает null, если latencyBudget равен null - очередь не ограничена.
+     * policy - что делать при переполнении, по умолчанию BLOCK: ждать места не дольше latencyBudget.
+     */
+    public static PendingQueue forLatencyBudget(RateLimiter rateLimiter, Duration latencyBudget, OverloadPolicy policy) {
+        if (latencyBudget == null) {
+            return null;
+        }
+        long capacity = latencyBudget.toNanos() * rateLimiter.getRequestLimit() / rateLimiter.getPeriodNanos();
+        return new PendingQueue((int) Math.max(1, Math.min(Integer.MAX_VALUE, capacity)),
+                (policy != null) ? policy : OverloadPolicy.BLOCK, latencyBudget.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverloadPolicy getPolicy() {
+        return policy;
+    }
+
+    public int getPending() {
+        return capacity - permits.availablePermits();
+    }
+
+    /**
+     * Занимает место в очереди по правилам политики.
+     * onDrop вызывается, если запрос потом будет вытеснен более новым.
+     * Возвращает CALLER_RUNS, если по политике CALLER_RUNS_LATER посылать должен вызывающий поток.
+     * Если места нет и ждать его нельзя, бросает RejectedExecutionException.
+     */
+    public Entry admit(Runnable onDrop) throws InterruptedException {
+        if (permits.tryAcquire()) {
+            return add(onDrop);
+        }
+        switch (policy) {
+            case BLOCK:
+                if (permits.tryAcquire(blockTimeout, TimeUnit.NANOSECONDS)) {
+                    return add(onDrop);
+                }
+                throw new RejectedExecutionException("Очередь посылок заполнена, ожидание места превысило "
+                        + TimeUnit.NANOSECONDS.toMillis(blockTimeout) + " мс");
+            case DROP_OLDEST:
+                return replaceOldest(onDrop);
+            case CALLER_RUNS_LATER:
+                return CALLER_RUNS;
+            default:
+                throw new RejectedExecutionException("Очередь посылок заполнена: " + capacity + " запросов");
+        }
+    }
+
+    /**
+     * Занимает место в очереди, ожидая его не дольше timeout независимо от политики.
+     * Возвращает null, если место так и не освободилось.
+     */
+    public Entry tryAdmit(long timeout, TimeUnit unit, Runnable onDrop) throws InterruptedException {
+        return permits.tryAcquire(timeout, unit) ? add(onDrop) : null;
+    }
+
+    /**
+     * Занимает место, ожидая его сколько потребуется.
+     */
+    public Entry admitBlocking(Runnable onDrop) throws InterruptedException {
+        permits.acquire();
+        return add(onDrop);
+    }
+
+    /**
+     * Занимает место для текущего потока синхронного клиента по правилам политики, как admit.
+     */
+    public Waiter admitWaiter() throws InterruptedException {
+        Waiter waiter = new Waiter();
+        waiter.entry = admit(waiter);
+        return waiter;
+    }
+
+    /**
+     * Занимает место для текущего потока, ожидая его не дольше timeout, как tryAdmit.
+     * Возвращает null, если место так и не освободилось.
+     */
+    public Waiter tryAdmitWaiter(long timeout, TimeUnit unit) throws InterruptedException {
+        Waiter waiter = new Waiter();
+        waiter.entry = tryAdmit(timeout, unit, waiter);
+        return (waiter.entry != null) ? waiter : null;
+    }
+
+    private Entry add(Runnable onDrop) {
+        Entry entry = new Entry(onDrop);
+        if (policy == OverloadPolicy.DROP_OLDEST) {
+            entries.addLast(entry);
+        }
+        return entry;
+    }
+
+    private Entry replaceOldest(Runnable onDrop) {
+        while (true) {
+            Entry oldest = entries.pollFirst();
+            if (oldest == null) {
+                //все ожидающие запросы уже уходят в посылку и вот-вот отдадут свои места
+                if (permits.tryAcquire()) {
+                    return add(onDrop);
+                }
+                Thread.yield();
+            } else if (oldest.claimed.compareAndSet(false, true)) {
+                //место вытесненного запроса не возвращаем в светофор, а сразу отдаем новому
+                oldest.onDrop.run();
+                return add(onDrop);
+            }
+        }
+    }
+}
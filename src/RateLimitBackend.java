@@ -0,0 +1,59 @@
+import java.util.function.Consumer;
+
+/**
+ * Хранилище слотов ограничителя частоты. RateLimiter решает, с каким промежутком и не раньше какого
+ * момента допускать запросы, а хранилище выдает сами моменты допуска.
+ * По умолчанию слоты живут в памяти процесса (InMemoryRateLimitBackend).
+ * Если квоту делят несколько JVM, слоты выдаются из общего состояния (FileLeaseRateLimitBackend).
+ */
+public interface RateLimitBackend {
+    /**
+     * Состояние перегрузки: пауза и действующий лимит. Времена в шкале System.nanoTime().
+     */
+    final class Overload {
+        public long pausedUntil;   //раньше этого момента ничего не допускаем
+        public int effectiveLimit; //действующий лимит за timeUnit
+        public long lastThrottle;  //момент последнего снижения лимита
+    }
+
+    /**
+     * Резервирует count слотов подряд и возвращает разрешенные моменты посылок в шкале System.nanoTime().
+     * period - промежуток в наносекундах между запросами, отстоящими друг от друга на requestLimit слотов,
+     * gap - наименьший промежуток между соседними слотами (0 - соседние слоты не разносятся),
+     * notBefore - момент в той же шкале, раньше которого допускать нельзя.
+     */
+    long[] reserve(int count, long period, long gap, long notBefore);
+
+    /**
+     * То же для одного слота. Отдельный метод, чтобы на горячем пути не создавать массив.
+     */
+    long reserve(long period, long gap, long notBefore);
+
+    /**
+     * Вызывается, когда посылка по наступившему слоту sendTime действительно начинается.
+     * period - окно в наносекундах, в которое должно попасть не больше requestLimit фактических посылок.
+     * Возвращает 0, если посылать можно (посылка учтена), положительное число - сколько наносекунд
+     * подождать и спросить снова, или -1, если по этому слоту посылать уже нельзя и нужен новый.
+     */
+    long start(long sendTime, long period);
+
+    /**
+     * Атомарно для всех узлов, делящих квоту, выполняет update над общим состоянием перегрузки
+     * и оставляет результат в state. update == null - только перечитать в state то, что объявили другие узлы.
+     * Хранилище в памяти процесса общего состояния не ведет: update выполняется прямо над state,
+     * т.е. пауза и снижение лимита действуют только на свой RateLimiter.
+     */
+    default void updateOverload(Overload state, Consumer<Overload> update) {
+        if (update != null) {
+            update.accept(state);
+        }
+    }
+
+    /**
+     * Меняется, когда хранилище узнает о новом общем состоянии перегрузки, и тогда RateLimiter
+     * перечитывает его через updateOverload. Хранилище без общего состояния всегда возвращает 0.
+     */
+    default long overloadVersion() {
+        return 0;
+    }
+}
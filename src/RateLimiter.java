@@ -0,0 +1,269 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*  Общий для всех вариантов CrptApi ограничитель частоты отправок.
+    Каждый запрос резервирует слот - момент, начиная с которого его можно посылать.
+    Сами слоты выдает RateLimitBackend: по умолчанию кольцо в памяти процесса без мьютексов
+    (InMemoryRateLimitBackend), а если квоту делят несколько JVM - общее хранилище.
+
+    Когда сервер сигналит о перегрузке, действующий лимит можно снизить (throttle):
+    тогда запросы одного класса разносятся на timeUnit * requestLimit / действующий лимит.
+    Успешные ответы (recover) возвращают лимит обратно по одному запросу за окно.
+    Кроме того, все посылки можно приостановить до заданного момента (pauseUntil), например по Retry-After.
+    Пауза действует и на уже выданные слоты: перед посылкой слот проверяется (isCurrent),
+    и слот раньше конца паузы заменяется новым. Слоты после паузы остаются в силе.
+    Снижение лимита уже выданные слоты не трогает, а разносит только новые. Если бросать выданные слоты,
+    кольцо все равно помнит их времена, и каждый новый слот встает за всей очередью:
+    при лимите 10 в секунду и очереди в 100 документов одно снижение отодвигало первый документ на 10 с.
+
+    Кольцо хранит не фактический момент посылки, а выданный слот, а посылка может начаться позже слота.
+    Поэтому в момент, когда посылка действительно начинается, ее проверяет tryStart: хранилище в памяти
+    процесса ведет окно фактических посылок и, если оно заполнено, велит подождать - слот при этом
+    не пропадает и посылка не встает в конец очереди. Чтобы ждать приходилось редко,
+    к промежутку между слотами одного класса добавляется запас lateness (1 мс, но не больше сотой доли окна).
+    Пауза и действующий лимит - общее состояние перегрузки (RateLimitBackend.Overload). Хранилище,
+    которое делят несколько JVM, ведет его для всех узлов: ответ 429 одному узлу приостанавливает
+    и замедляет все. Чужие изменения ограничитель перечитывает перед резервированием и проверкой слота.
+    Общее для нескольких JVM хранилище чужих посылок не видит и опоздание больше запаса не допускает:
+    такой слот пропадает, и нужен новый. Квота при этом теряется, но не превышается.
+
+    По умолчанию ограничитель - обычное скользящее окно: всплеск до requestLimit запросов уходит сразу.
+    Ограничитель с равномерной выдачей (paced) разносит соседние слоты не меньше чем на
+    timeUnit / действующий лимит. Пропускная способность за окно от этого не меняется,
+    но первые requestLimit запросов идут не разом, а равномерно, и кольцо не повторяет
+    форму первого всплеска в каждом следующем окне. Это стоит задержки: при лимите N в минуту
+    десять документов уйдут не сразу, а за 10 / N минут.
+ */
+public class RateLimiter {
+    private static final long MAX_LATENESS_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final TimeUnit timeUnit;
+    private final long period; //длительность окна в наносекундах
+    private final int requestLimit;
+    private final RateLimitBackend backend;
+    private final AtomicLong pausedUntil;    //копия overload.pausedUntil для горячего пути
+    private final long lateness; //запас на опоздание посылки относительно слота, наносекунды
+    private final boolean paced; //разносить ли соседние слоты на timeUnit / действующий лимит
+
+    //пауза и действующий лимит. Меняется только под мьютексом this через backend.updateOverload
+    private final RateLimitBackend.Overload overload = new RateLimitBackend.Overload();
+    private volatile long effectivePeriod; //промежуток между запросами одного класса при overload.effectiveLimit
+    private volatile long overloadVersion; //версия общего состояния, которую уже перечитали
+    private int successes;       //успехов с последнего изменения действующего лимита
+
+    public RateLimiter(TimeUnit timeUnit, int requestLimit) {
+        this(timeUnit, requestLimit, null);
+    }
+
+    /**
+     * backend - хранилище слотов. Если null, слоты хранятся в памяти процесса.
+     */
+    public RateLimiter(TimeUnit timeUnit, int requestLimit, RateLimitBackend backend) {
+        this(timeUnit, requestLimit, backend, false);
+    }
+
+    /**
+     * paced - разносить соседние слоты не меньше чем на timeUnit / действующий лимит,
+     * а не отдавать всплеск до requestLimit запросов разом.
+     */
+    public RateLimiter(TimeUnit timeUnit, int requestLimit, RateLimitBackend backend, boolean paced) {
+        if (requestLimit <= 0) {
+            throw new IllegalArgumentException("requestLimit должен быть положительным: " + requestLimit);
+        }
+        this.timeUnit = timeUnit;
+        this.period = timeUnit.toNanos(1);
+        this.requestLimit = requestLimit;
+        this.paced = paced;
+        this.lateness = Math.min(MAX_LATENESS_NANOS, period / 100);
+        this.backend = (backend != null) ? backend : new InMemoryRateLimitBackend(timeUnit, requestLimit);
+        long start = System.nanoTime() - period;
+        overload.pausedUntil = start;
+        overload.effectiveLimit = requestLimit;
+        overload.lastThrottle = start;
+        pausedUntil = new AtomicLong(start);
+        effectivePeriod = period;
+        synchronized (this) {
+            overloadVersion = this.backend.overloadVersion();
+            this.backend.updateOverload(overload, null); //узел может присоединиться к уже перегруженной квоте
+            applyOverload();
+        }
+    }
+
+    public TimeUnit getTimeUnit() {
+        return timeUnit;
+    }
+
+    public long getPeriodNanos() {
+        return period;
+    }
+
+    public int getRequestLimit() {
+        return requestLimit;
+    }
+
+    public boolean isPaced() {
+        return paced;
+    }
+
+    public int getEffectiveRequestLimit() {
+        refreshOverload();
+        synchronized (this) {
+            return overload.effectiveLimit;
+        }
+    }
+
+    /**
+     * Снижает действующий лимит на четверть (но не ниже 1).
+     * Серия отказов от одной перегрузки снижает лимит не чаще раза за окно timeUnit, в том числе
+     * когда отказы получили разные узлы общего хранилища.
+     * Действует на слоты, выданные после снижения.
+     */
+    public synchronized void throttle() {
+        backend.updateOverload(overload, state -> {
+            long now = System.nanoTime();
+            if (now - state.lastThrottle < period * requestLimit / state.effectiveLimit) {
+                return;
+            }
+            state.lastThrottle = now;
+            state.effectiveLimit = Math.max(1, state.effectiveLimit - Math.max(1, state.effectiveLimit / 4));
+        });
+        applyOverload();
+    }
+
+    /**
+     * Учитывает успешную посылку: каждые effectiveLimit успехов подряд поднимают лимит на 1.
+     */
+    public void recover() {
+        if (effectivePeriod == period) { //лимит не снижен - на горячем пути обходимся чтением volatile
+            return;
+        }
+        synchronized (this) {
+            if (++successes >= overload.effectiveLimit) {
+                successes = 0;
+                backend.updateOverload(overload, state -> {
+                    if (state.effectiveLimit < requestLimit) {
+                        state.effectiveLimit++;
+                    }
+                });
+                applyOverload();
+            }
+        }
+    }
+
+    /**
+     * Не допускать посылок раньше момента time в шкале System.nanoTime().
+     */
+    public void pauseUntil(long time) {
+        pausedUntil.accumulateAndGet(time, RateLimiter::later);
+        synchronized (this) {
+            backend.updateOverload(overload, state -> state.pausedUntil = later(state.pausedUntil, time));
+            applyOverload();
+        }
+    }
+
+    private static long later(long current, long proposed) {
+        return (proposed - current > 0) ? proposed : current;
+    }
+
+    //Переносит overload в поля горячего пути. Вызывается под мьютексом this
+    private void applyOverload() {
+        long currentPeriod = period * requestLimit / overload.effectiveLimit;
+        if (currentPeriod != effectivePeriod) {
+            successes = 0;
+            effectivePeriod = currentPeriod;
+        }
+        pausedUntil.accumulateAndGet(overload.pausedUntil, RateLimiter::later);
+    }
+
+    //Перечитывает общее состояние перегрузки, если хранилище узнало о чужих изменениях.
+    //Для хранилища в памяти процесса это одно чтение volatile
+    private void refreshOverload() {
+        long version = backend.overloadVersion();
+        if (version != overloadVersion) {
+            synchronized (this) {
+                overloadVersion = version;
+                backend.updateOverload(overload, null);
+                applyOverload();
+            }
+        }
+    }
+
+    /**
+     * Резервирует слот для одной отправки и возвращает момент (в шкале System.nanoTime()),
+     * начиная с которого отправка разрешена. Сам метод не ждет наступления этого момента.
+     */
+    public long reserve() {
+        refreshOverload();
+        long currentPeriod = effectivePeriod;
+        return backend.reserve(currentPeriod + lateness, gap(currentPeriod), pausedUntil.get());
+    }
+
+    /**
+     * Резервирует сразу count слотов за один шаг.
+     * Слоты идут подряд, поэтому пачка проходит ровно по requestLimit отправок за timeUnit без пауз
+     * между окнами. Возвращает разрешенные моменты отправок в порядке резервирования.
+     */
+    public long[] reserve(int count) {
+        refreshOverload();
+        long currentPeriod = effectivePeriod;
+        return backend.reserve(count, currentPeriod + lateness, gap(currentPeriod), pausedUntil.get());
+    }
+
+    //наименьший промежуток между соседними слотами
+    private long gap(long currentPeriod) {
+        return paced ? currentPeriod / requestLimit : 0;
+    }
+
+    /**
+     * Вызывается, когда посылка по слоту sendTime действительно начинается.
+     * Возвращает 0, если посылать можно, положительное число - на сколько наносекунд отложить посылку,
+     * сохранив слот, или -1, если слот пропал (пауза или опоздание, которое хранилище не допускает)
+     * и нужно зарезервировать новый.
+     */
+    public long tryStart(long sendTime) {
+        if (!isCurrent(sendTime)) {
+            return -1;
+        }
+        long waitingTime = sendTime - System.nanoTime();
+        if (waitingTime > 0) {
+            return waitingTime;
+        }
+        return backend.start(sendTime, period);
+    }
+
+    /**
+     * Действует ли еще слот sendTime: он не раньше конца паузы.
+     * Если нет, слот надо бросить и зарезервировать новый.
+     */
+    public boolean isCurrent(long sendTime) {
+        refreshOverload();
+        return sendTime - pausedUntil.get() >= 0;
+    }
+
+    /**
+     * Резервирует слот и ждет наступления разрешенного момента отправки.
+     * Никакой мьютекс во время ожидания не удерживается.
+     * Если поток проснулся позже слота, он ждет, пока его допустит окно фактических посылок (tryStart),
+     * а если слот пропал - резервирует новый.
+     * Возвращает момент использованного слота в шкале System.nanoTime(),
+     * по нему вызывающий может посчитать опоздание посылки.
+     */
+    public long acquire() throws InterruptedException {
+        while (true) {
+            long sendTime = reserve();
+            long waitingTime;
+            while ((waitingTime = tryStart(sendTime)) > 0) {
+                LockSupport.parkNanos(this, waitingTime);
+                if (Thread.interrupted()) {
+                    //слот уже израсходован, но посылки не будет - это безопасно для соблюдения лимита
+                    throw new InterruptedException();
+                }
+            }
+            if (waitingTime == 0) {
+                return sendTime;
+            }
+            //слот пропал - резервируем новый
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+
+/*  Сборка запросов и настройка HTTP клиента для всех вариантов CrptApi.
+    Раньше запрос собирался из общего HttpRequest.Builder под мьютексом. Это выстраивало всех
+    вызывающих в очередь, а header() добавляет значение, а не заменяет его, так что каждый запрос
+    уносил подписи всех предыдущих.
+
+    Теперь шаблон с адресом и таймаутом заполняется один раз в конструкторе и больше не меняется.
+    Каждый запрос собирается из его копии (copy()), поэтому мьютекс не нужен,
+    а заголовок signature в запросе ровно один.
+
+    Клиент настраивается явно: HTTP/2, таймаут соединения и исполнитель для асинхронных ответов.
+    По HTTP/2 одновременные посылки идут потоками (streams) одного соединения с хостом.
+    Если сервер HTTP/2 не поддерживает, клиент переходит на HTTP/1.1 с пулом соединений.
+    У JDK клиента размер пулов задается не через API, а системными свойствами при запуске JVM:
+    jdk.httpclient.connectionPoolSize - соединений HTTP/1.1 на хост (0 - без ограничения),
+    jdk.httpclient.keepalive.timeout - сколько секунд держать простаивающее соединение,
+    jdk.httpclient.maxstreams - одновременных потоков HTTP/2 на соединение.
+ */
+public class RequestFactory {
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+
+    //после конструктора только копируется, поэтому общий доступ без мьютекса безопасен
+    private final HttpRequest.Builder template;
+
+    public RequestFactory(String url) {
+        template = HttpRequest.newBuilder().uri(URI.create(url)).timeout(REQUEST_TIMEOUT);
+    }
+
+    public HttpRequest create(String signature, byte[] json) {
+        return template.copy().header("signature", signature)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(json)).build();
+    }
+
+    /**
+     * HTTP клиент для посылок. executor исполняет обработку ответов sendAsync.
+     * Если null, клиент создает собственный кэширующий пул.
+     */
+    public static HttpClient newHttpClient(Executor executor) {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NEVER);
+        if (executor != null) {
+            builder.executor(executor);
+        }
+        return builder.build();
+    }
+}
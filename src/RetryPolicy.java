@@ -0,0 +1,123 @@
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*  Правила повтора неудачных посылок.
+    Раньше ошибка посылки только логировалась, а ответы 401/429/5xx не разбирались вовсе,
+    т.е. слот квоты тратился и на обреченные запросы, и на запросы, которые стоило повторить.
+
+    Повторяем ошибки ввода-вывода и статусы 408, 429, 500, 502, 503, 504.
+    Остальные 4xx (в том числе 401 - ошибка аутентификации) фатальны: повтор даст тот же ответ.
+    Пауза перед повтором - экспоненциальная с полным джиттером: случайная в [0, base * 2^(attempt-1)],
+    но не больше maxDelay. Если сервер прислал Retry-After, ждем не меньше указанного,
+    а ограничитель приостанавливает на это время и все остальные посылки.
+    После паузы запрос снова проходит через тот же RateLimiter и занимает новый слот.
+
+    При adaptLimit ответы 429 и 503 снижают действующий лимит ограничителя,
+    а успешные ответы постепенно возвращают его к requestLimit.
+ */
+public class RetryPolicy {
+    private final int maxAttempts;
+    private final long baseDelay; //наносекунды
+    private final long maxDelay;  //наносекунды
+    private final boolean adaptLimit;
+
+    /**
+     * 5 попыток, пауза от 200 мс до 30 с, адаптация лимита включена.
+     */
+    public RetryPolicy() {
+        this(5, Duration.ofMillis(200), Duration.ofSeconds(30), true);
+    }
+
+    /**
+     * maxAttempts - общее число попыток, включая первую. 1 - без повторов.
+     */
+    public RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay, boolean adaptLimit) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Число попыток должно быть не меньше 1: " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay.toNanos();
+        this.maxDelay = maxDelay.toNanos();
+        this.adaptLimit = adaptLimit;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public static boolean isSuccess(int status) {
+        return status >= 200 && status < 300;
+    }
+
+    public static boolean isRetryable(int status) {
+        return status == 408 || status == 429 || status == 500 || status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * Разбирает исход попытки номер attempt (с 1): ответ response или ошибку error.
+     * Сообщает ограничителю о перегрузке сервера или об успехе.
+     * Возвращает паузу в наносекундах перед следующей попыткой или -1, если повторять не нужно.
+     */
+    public long retryDelay(int attempt, HttpResponse<?> response, Throwable error, RateLimiter rateLimiter) {
+        long retryAfter = -1;
+        if (response != null) {
+            int status = response.statusCode();
+            if (isSuccess(status)) {
+                if (adaptLimit) {
+                    rateLimiter.recover();
+                }
+                return -1;
+            }
+            if (status == 429 || status == 503) {
+                if (adaptLimit) {
+                    rateLimiter.throttle();
+                }
+                retryAfter = retryAfterNanos(response);
+                if (retryAfter > 0) {
+                    rateLimiter.pauseUntil(System.nanoTime() + retryAfter);
+                }
+            }
+            if (!isRetryable(status)) {
+                return -1;
+            }
+        } else if (error == null) {
+            return -1;
+        }
+        if (attempt >= maxAttempts) {
+            return -1;
+        }
+        long ceiling = baseDelay << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > maxDelay) { //<= 0 - переполнение сдвига
+            ceiling = maxDelay;
+        }
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        return Math.max(delay, retryAfter);
+    }
+
+    /**
+     * Значение заголовка Retry-After в наносекундах: число секунд или дата HTTP. -1, если заголовка нет.
+     */
+    static long retryAfterNanos(HttpResponse<?> response) {
+        Optional<String> header = response.headers().firstValue("Retry-After");
+        if (header.isEmpty()) {
+            return -1;
+        }
+        String value = header.get().trim();
+        try {
+            return TimeUnit.SECONDS.toNanos(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime time = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(ZonedDateTime.now(time.getZone()), time).toNanos());
+            } catch (DateTimeParseException | ArithmeticException ignored) {
+                return -1;
+            }
+        }
+    }
+}
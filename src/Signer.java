@@ -0,0 +1,14 @@
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Подпись сериализованного документа. Реализация может считать подпись локальным ключом
+ * или обращаться к внешнему сервису. Вызывается из рабочих потоков SigningStage одновременно,
+ * поэтому должна быть потокобезопасной.
+ */
+public interface Signer {
+    /**
+     * Возвращает подпись документа payload в том виде, в котором ее ждет заголовок signature.
+     */
+    String sign(byte[] payload) throws GeneralSecurityException, IOException;
+}
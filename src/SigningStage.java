@@ -0,0 +1,106 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/*  Стадия подписи документов перед посылкой.
+    Раньше подпись приходила в createDoc готовой строкой, т.е. поток-производитель подписывал
+    документ сам и только потом вставал в очередь ограничителя: время подписи прибавлялось к задержке.
+
+    Здесь подпись считается в пуле рабочих потоков, пока ранее подписанные документы ждут своих слотов.
+    Подписи кэшируются по хэшу SHA-256 содержимого: повторно присланный тот же документ
+    не подписывается заново. В кэше лежат не строки, а future подписи, так что одинаковые документы,
+    пришедшие одновременно, тоже подписываются один раз. Кэш ограничен cacheSize записями
+    и вытесняет давно не использованные (LinkedHashMap в порядке доступа под мьютексом кэша).
+    Неудачная подпись из кэша удаляется, чтобы следующая попытка подписала документ заново.
+ */
+public class SigningStage {
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 обязан быть в любой JVM", e);
+        }
+    });
+
+    private final Signer signer;
+    private final Executor executor;
+    private final Map<ByteBuffer, CompletableFuture<String>> cache;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * executor - пул, в котором считаются подписи. cacheSize - сколько подписей помнить, 0 - не кэшировать.
+     */
+    public SigningStage(Signer signer, Executor executor, int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Размер кэша подписей не может быть отрицательным: " + cacheSize);
+        }
+        this.signer = signer;
+        this.executor = executor;
+        cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, CompletableFuture<String>> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Подписывает payload в пуле или берет подпись из кэша. Массив payload после вызова менять нельзя.
+     * Ошибка подписи приходит через возвращаемый future.
+     */
+    public CompletableFuture<String> sign(byte[] payload) {
+        ByteBuffer key = ByteBuffer.wrap(DIGEST.get().digest(payload));
+        CompletableFuture<String> signature;
+        boolean cached;
+        synchronized (cache) {
+            signature = cache.get(key);
+            cached = (signature != null);
+            if (!cached) {
+                signature = new CompletableFuture<>();
+                cache.put(key, signature);
+            }
+        }
+        if (cached) {
+            hits.increment();
+        } else {
+            misses.increment();
+            CompletableFuture<String> result = signature;
+            try {
+                executor.execute(() -> {
+                    try {
+                        result.complete(signer.sign(payload));
+                    } catch (Exception e) {
+                        forget(key, result);
+                        result.completeExceptionally(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                forget(key, result);
+                result.completeExceptionally(e);
+            }
+        }
+        //отдаем копию, чтобы отмена одним вызывающим не задела остальных
+        return signature.copy();
+    }
+
+    public long getCacheHits() {
+        return hits.sum();
+    }
+
+    public long getCacheMisses() {
+        return misses.sum();
+    }
+
+    private void forget(ByteBuffer key, CompletableFuture<String> signature) {
+        synchronized (cache) {
+            cache.remove(key, signature);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+import org.apache.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/*  Справедливое распределение общей квоты между участниками (ИНН).
+    Если слот резервировать в момент вызова createDoc, очередь посылок общая и идет по порядку прихода:
+    пачка из тысяч документов одного участника занимает слоты на минуты вперед,
+    и единичный документ другого участника ждет, пока она не пройдет целиком.
+
+    Здесь у каждого участника своя очередь, а слот общего RateLimiter занимается только тогда,
+    когда очередной документ действительно пора посылать. Единственный поток-диспетчер
+    берет по одному слоту и в момент его наступления выбирает участника по алгоритму
+    deficit round robin: участник с весом w посылает w документов подряд, затем ход переходит к следующему.
+    Поэтому документ участника с короткой очередью ждет не дольше одного круга по активным участникам.
+
+    Сам диспетчер берет слоты не чаще одного за timeUnit / действующий лимит. Иначе скользящее окно
+    сохраняет форму первого всплеска: весь лимит уходит за миллисекунды в начале каждого окна,
+    и участник, пришедший после всплеска, ждет почти целое окно, даже если его ход следующий.
+
+    Участнику можно задать собственный лимит - не больше limit посылок за скользящее окно.
+    Пока его окно заполнено, участник пропускается и общий слот достается другим.
+
+    Как и DispatchScheduler, диспетчер запускается при первой задаче и завершается при простое.
+    Наступившая задача передается исполнителю. Слот проверяется (RateLimiter.isCurrent) перед выбором участника,
+    так что пауза по Retry-After действует и на слот, которого диспетчер уже ждет.
+    Когда задача началась в исполнителе, ее еще раз проверяет RateLimiter.tryStart: опоздавшая задача
+    ждет, пока ее допустит окно фактических посылок, а задача, чей слот пропал, возвращается в голову очереди
+    своего участника и получит новый слот в его следующий ход. Опоздание допущенных задач пишется в метрики.
+
+    Участников может быть очень много, поэтому участник с пустой очередью, весом 1 и без собственного лимита
+    убирается из таблицы - его состояние ничем не отличается от только что созданного.
+    Постановка задачи, настройка и удаление участника идут через ConcurrentHashMap.compute,
+    так что задача не может попасть к участнику, которого уже убрали.
+ */
+public class TenantScheduler {
+    private static final long KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    //Собственный лимит участника: кольцо моментов его последних посылок. Трогает только диспетчер
+    private static class SubLimit {
+        final long period;
+        final long[] sendTimes;
+        int next;
+
+        SubLimit(long period, int limit) {
+            this.period = period;
+            sendTimes = new long[limit];
+            long start = System.nanoTime() - period;
+            for (int i = 0; i < limit; i++) {
+                sendTimes[i] = start;
+            }
+        }
+
+        //момент, с которого участник может посылать
+        long readyTime() {
+            return sendTimes[next] + period;
+        }
+
+        void sent(long time) {
+            sendTimes[next] = time;
+            next = (next + 1) % sendTimes.length;
+        }
+    }
+
+    private static class Tenant {
+        final String inn;
+        final ConcurrentLinkedDeque<Runnable> tasks = new ConcurrentLinkedDeque<>();
+        final AtomicInteger queued = new AtomicInteger(); //задач в очереди, включая только что добавленные
+        volatile int weight = 1;
+        volatile SubLimit subLimit;
+        long deficit; //сколько еще документов участник может послать в текущий ход. Трогает только диспетчер
+
+        Tenant(String inn) {
+            this.inn = inn;
+        }
+    }
+
+    private final Logger logger = Logger.getLogger(TenantScheduler.class);
+    private final String name;
+    private final RateLimiter rateLimiter;
+    private final Executor executor;
+    private final CrptApiMetrics metrics; //сюда пишется опоздание посылок относительно слота. Может быть null
+    private final ConcurrentHashMap<String, Tenant> tenants = new ConcurrentHashMap<>();
+    //участники, у которых очередь стала непустой. Диспетчер переносит их в active
+    private final ConcurrentLinkedQueue<Tenant> activated = new ConcurrentLinkedQueue<>();
+    //участники с непустой очередью в порядке обхода. Трогает только диспетчер
+    private final ArrayDeque<Tenant> active = new ArrayDeque<>();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile Thread dispatcher;
+    private long nextDispatch; //раньше этого момента следующий слот не берем. Трогает только диспетчер
+
+    public TenantScheduler(String name, RateLimiter rateLimiter, Executor executor, CrptApiMetrics metrics) {
+        this.name = name;
+        this.rateLimiter = rateLimiter;
+        this.executor = executor;
+        this.metrics = metrics;
+        nextDispatch = System.nanoTime();
+    }
+
+    /**
+     * Вес участника: сколько документов подряд он посылает за свой ход. По умолчанию 1.
+     */
+    public void setWeight(String inn, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Вес участника должен быть положительным: " + weight);
+        }
+        update(inn, tenant -> tenant.weight = weight);
+    }
+
+    /**
+     * Собственный лимит участника: не больше limit посылок за timeUnit. limit <= 0 снимает лимит.
+     * Общий лимит RateLimiter действует в любом случае.
+     */
+    public void setSubLimit(String inn, TimeUnit timeUnit, int limit) {
+        SubLimit subLimit = (limit > 0) ? new SubLimit(timeUnit.toNanos(1), limit) : null;
+        update(inn, tenant -> tenant.subLimit = subLimit);
+    }
+
+    /**
+     * Сколько участников сейчас хранит планировщик: с задачами в очереди или с особыми настройками.
+     */
+    public int getTenantCount() {
+        return tenants.size();
+    }
+
+    /**
+     * Сколько задач участника ждут посылки.
+     */
+    public int getQueued(String inn) {
+        Tenant tenant = tenants.get(key(inn));
+        return (tenant == null) ? 0 : tenant.queued.get();
+    }
+
+    /**
+     * Ставит задачу посылки в очередь участника inn.
+     * Задача будет передана исполнителю в момент, разрешенный общим ограничителем, когда до участника дойдет ход.
+     */
+    public void submit(String inn, Runnable task) {
+        tenants.compute(key(inn), (key, tenant) -> {
+            tenant = (tenant != null) ? tenant : new Tenant(key);
+            tenant.tasks.addLast(task);
+            activate(tenant);
+            return tenant;
+        });
+        wakeDispatcher();
+    }
+
+    //Вызывается внутри compute по участнику. Участник с только что появившейся задачей уходит к диспетчеру
+    private void activate(Tenant tenant) {
+        if (tenant.queued.getAndIncrement() == 0) {
+            activated.add(tenant);
+        }
+    }
+
+    //Запускает диспетчер, если он завершился при простое, иначе будит его
+    private void wakeDispatcher() {
+        if (!running.get() && running.compareAndSet(false, true)) {
+            Thread thread = new Thread(this::dispatch, name);
+            dispatcher = thread;
+            thread.start();
+        } else {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    private static String key(String inn) {
+        return (inn != null) ? inn : "";
+    }
+
+    //Меняет настройку участника, создавая его при необходимости.
+    //Если после этого участник ничем не отличается от нового, он убирается из таблицы
+    private void update(String inn, Consumer<Tenant> change) {
+        tenants.compute(key(inn), (key, tenant) -> {
+            tenant = (tenant != null) ? tenant : new Tenant(key);
+            change.accept(tenant);
+            return isIdle(tenant) ? null : tenant;
+        });
+    }
+
+    private static boolean isIdle(Tenant tenant) {
+        return tenant.queued.get() == 0 && tenant.weight == 1 && tenant.subLimit == null;
+    }
+
+    //Очередь участника опустела. Если никто не успел положить в нее задачу, убираем участника
+    private void removeIfIdle(Tenant tenant) {
+        tenants.computeIfPresent(tenant.inn, (key, current) -> (current == tenant && isIdle(current)) ? null : current);
+    }
+
+    private void dispatch() {
+        while (true) {
+            moveActivated();
+            if (active.isEmpty()) {
+                LockSupport.parkNanos(this, KEEP_ALIVE_NANOS);
+                if (activated.isEmpty()) {
+                    //тот же протокол остановки, что и в DispatchScheduler
+                    running.set(false);
+                    if (activated.isEmpty() || !running.compareAndSet(false, true)) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            //пока все активные участники уперлись в свои лимиты или не вышел шаг диспетчера, общий слот не занимаем
+            long now = System.nanoTime();
+            long readyTime = readyTime(now);
+            if (nextDispatch - readyTime > 0) {
+                readyTime = nextDispatch;
+            }
+            if (readyTime - now > 0) {
+                LockSupport.parkNanos(this, readyTime - now);
+                continue;
+            }
+            long sendTime = rateLimiter.reserve();
+            //как и DispatchScheduler, спим почти до слота, а последние SPIN_NANOS докручиваем
+            long waitingTime;
+            while ((waitingTime = sendTime - System.nanoTime()) > SPIN_NANOS) {
+                LockSupport.parkNanos(this, waitingTime - SPIN_NANOS);
+            }
+            while (sendTime - System.nanoTime() > 0) {
+                Thread.onSpinWait();
+            }
+            if (!rateLimiter.isCurrent(sendTime)) {
+                continue; //за время ожидания включилась пауза
+            }
+            nextDispatch = sendTime + rateLimiter.getPeriodNanos() / rateLimiter.getEffectiveRequestLimit();
+            //участники, пришедшие за время ожидания слота, тоже претендуют на него
+            moveActivated();
+            Tenant tenant = nextTenant(System.nanoTime());
+            Runnable task = tenant.tasks.poll();
+            SubLimit subLimit = tenant.subLimit;
+            if (subLimit != null) {
+                subLimit.sent(System.nanoTime());
+            }
+            tenant.deficit--;
+            if (tenant.queued.decrementAndGet() == 0) {
+                //очередь опустела. Если в нее уже кладут новую задачу, участник вернется через activated
+                active.pollFirst();
+                tenant.deficit = 0;
+                removeIfIdle(tenant);
+            } else if (tenant.deficit <= 0) {
+                active.addLast(active.pollFirst());
+            }
+            try {
+                Tenant owner = tenant;
+                executor.execute(() -> start(owner, task, sendTime));
+            } catch (RuntimeException e) {
+                logger.error("Исполнитель не принял задачу участника " + tenant.inn + " планировщика " + name, e);
+            }
+        }
+    }
+
+    //Запускается в исполнителе: ждем, пока посылку допустит окно фактических посылок, и посылаем.
+    //Если слот пропал, задача возвращается в очередь участника
+    private void start(Tenant owner, Runnable task, long sendTime) {
+        long waitingTime;
+        while ((waitingTime = rateLimiter.tryStart(sendTime)) > 0) {
+            LockSupport.parkNanos(this, waitingTime);
+        }
+        if (waitingTime < 0) {
+            requeue(owner, task);
+            return;
+        }
+        if (metrics != null) {
+            metrics.admitted(System.nanoTime() - sendTime);
+        }
+        task.run();
+    }
+
+    //Слот задачи пропал - возвращаем ее первой в очередь участника.
+    //Если участника за это время убрали, возвращаем в таблицу его же или уже созданного заново
+    private void requeue(Tenant owner, Runnable task) {
+        tenants.compute(owner.inn, (key, tenant) -> {
+            tenant = (tenant != null) ? tenant : owner;
+            tenant.tasks.addFirst(task);
+            activate(tenant);
+            return tenant;
+        });
+        wakeDispatcher();
+    }
+
+    private void moveActivated() {
+        for (Tenant tenant; (tenant = activated.poll()) != null; ) {
+            active.addLast(tenant);
+        }
+    }
+
+    //Ближайший момент, когда хотя бы один активный участник может посылать
+    private long readyTime(long now) {
+        long earliest = 0;
+        boolean first = true;
+        for (Tenant tenant : active) {
+            SubLimit subLimit = tenant.subLimit;
+            long time = (subLimit != null) ? subLimit.readyTime() : now;
+            if (time - now <= 0) {
+                return now;
+            }
+            if (first || time - earliest < 0) {
+                earliest = time;
+                first = false;
+            }
+        }
+        return earliest;
+    }
+
+    //Ставит в голову active участника, чей ход, и пополняет его дефицит на новый ход.
+    //Хотя бы один участник готов: лимиты участников со временем только освобождаются
+    private Tenant nextTenant(long now) {
+        while (true) {
+            Tenant tenant = active.peekFirst();
+            SubLimit subLimit = tenant.subLimit;
+            if (subLimit != null && subLimit.readyTime() - now > 0) {
+                tenant.deficit = 0; //участник пропускает ход
+                active.addLast(active.pollFirst());
+                continue;
+            }
+            if (tenant.deficit <= 0) {
+                tenant.deficit += tenant.weight;
+            }
+            return tenant;
+        }
+    }
+}
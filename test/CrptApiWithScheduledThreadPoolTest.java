@@ -0,0 +1,174 @@
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.SignatureException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*  Проверки клиента на локальной заглушке сервера, которая запоминает doc_id в порядке прихода запросов.
+ */
+public class CrptApiWithScheduledThreadPoolTest {
+    private static final Pattern DOC_ID = Pattern.compile("\"doc_id\":\"(\\d+)\"");
+
+    private HttpServer server;
+    private String url;
+    private final ConcurrentLinkedQueue<Integer> received = new ConcurrentLinkedQueue<>();
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            Matcher matcher = DOC_ID.matcher(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            if (matcher.find()) {
+                received.add(Integer.parseInt(matcher.group(1)));
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/v3/lk/documents/create";
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void pauseKeepsSendingOrder() throws Exception {
+        //20 в секунду с равномерной выдачей: слоты идут через 50 мс
+        RateLimiter rateLimiter = new RateLimiter(TimeUnit.SECONDS, 20, null, true);
+        CrptApiWithScheduledThreadPool crptApi = new CrptApiWithScheduledThreadPool(rateLimiter, url, null, null, null);
+        Doc warmUp = new Doc();
+        warmUp.doc_id = "warm-up"; //соединение и JIT: первые посылки холодной JVM могут обогнать друг друга
+        crptApi.createDocAsync(warmUp, "signature").get(10, TimeUnit.SECONDS);
+
+        List<CompletableFuture<HttpResponse<String>>> results = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            Doc doc = new Doc();
+            doc.doc_id = String.valueOf(i);
+            results.add(crptApi.createDocAsync(doc, "signature"));
+        }
+        //пауза накрывает несколько еще не наступивших слотов: их документы должны уйти первыми после паузы
+        rateLimiter.pauseUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300));
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+        assertEquals(IntStream.range(0, 30).boxed().collect(Collectors.toList()), new ArrayList<>(received));
+    }
+
+    @Test
+    public void batchWithOutboxIsSentAndMarked(@TempDir Path directory) throws Exception {
+        CrptApiWithScheduledThreadPool crptApi = new CrptApiWithScheduledThreadPool(
+                new RateLimiter(TimeUnit.SECONDS, 100), url, null, null, null);
+        try (DocOutbox outbox = new DocOutbox(directory, 1024 * 1024)) {
+            crptApi.useOutbox(outbox);
+            List<Doc> docs = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                Doc doc = new Doc();
+                doc.doc_id = String.valueOf(i);
+                docs.add(doc);
+            }
+            List<CompletableFuture<HttpResponse<String>>> results = crptApi.createDocs(docs, doc -> "signature");
+            results.add(crptApi.createDocAsync(new Doc(), "signature"));
+            CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(10, received.size());
+        try (DocOutbox outbox = new DocOutbox(directory, 1024 * 1024)) {
+            assertTrue(outbox.getUnsent().isEmpty(), "посланные документы отмечены в журнале");
+        }
+    }
+
+    @Test
+    public void unsignedDocumentDoesNotHoldSlot() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            CrptApiWithScheduledThreadPool crptApi = new CrptApiWithScheduledThreadPool(
+                    new RateLimiter(TimeUnit.SECONDS, 5), url, null, null, null);
+            crptApi.useSigner(new SigningStage(payload -> {
+                if (new String(payload, StandardCharsets.UTF_8).contains("\"doc_id\":\"0\"")) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new SignatureException(e);
+                    }
+                }
+                return "signature";
+            }, executor, 0));
+            List<CompletableFuture<HttpResponse<String>>> results = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                Doc doc = new Doc();
+                doc.doc_id = String.valueOf(i);
+                results.add(crptApi.createDocAsync(doc));
+            }
+            //документ 0 еще подписывается: остальные пять занимают все окно и уходят без него
+            CompletableFuture.allOf(results.subList(1, 6).toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+            release.countDown();
+            results.get(0).get(10, TimeUnit.SECONDS);
+            assertEquals(0, received.stream().reduce((first, second) -> second).orElseThrow());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void droppedDocumentIsCountedOnce() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        //очередь на один документ: второй вытесняет первый
+        CrptApiWithScheduledThreadPool crptApi = new CrptApiWithScheduledThreadPool(new RateLimiter(TimeUnit.SECONDS, 1),
+                url, null, Duration.ofSeconds(1), PendingQueue.OverloadPolicy.DROP_OLDEST);
+        crptApi.useSigner(new SigningStage(payload -> {
+            if (new String(payload, StandardCharsets.UTF_8).contains("\"doc_id\":\"0\"")) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new SignatureException(e);
+                }
+                throw new SignatureException("ключ недоступен");
+            }
+            return "signature";
+        }, executor, 0));
+        Doc first = new Doc();
+        first.doc_id = "0";
+        CompletableFuture<HttpResponse<String>> dropped = crptApi.createDocAsync(first);
+        Doc second = new Doc();
+        second.doc_id = "1";
+        CompletableFuture<HttpResponse<String>> sent = crptApi.createDocAsync(second);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> dropped.get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+
+        //подпись вытесненного документа не удалась уже после отказа - это та же неудача, а не вторая
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        sent.get(10, TimeUnit.SECONDS);
+        assertEquals(1, crptApi.getMetrics().getFailed());
+        assertEquals(List.of(1), new ArrayList<>(received));
+    }
+}
@@ -0,0 +1,149 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DocOutboxTest {
+    private static final long SEGMENT_SIZE = 1024 * 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void replaysOnlyUnmarkedDocuments() throws Exception {
+        long first;
+        try (DocOutbox outbox = new DocOutbox(directory, SEGMENT_SIZE)) {
+            first = outbox.append("sig1", json(1));
+            long sent = outbox.append("sig2", json(2));
+            long failed = outbox.append("sig3", json(3));
+            outbox.markSent(sent);
+            outbox.markFailed(failed);
+        }
+        try (DocOutbox outbox = new DocOutbox(directory, SEGMENT_SIZE)) {
+            List<DocOutbox.Entry> unsent = outbox.getUnsent();
+            assertEquals(1, unsent.size());
+            assertEquals(first, unsent.get(0).id);
+            assertEquals("sig1", unsent.get(0).signature);
+            assertArrayEquals(json(1), unsent.get(0).json);
+        }
+    }
+
+    @Test
+    public void dropsTornTailAndKeepsWorking() throws Exception {
+        try (DocOutbox outbox = new DocOutbox(directory, SEGMENT_SIZE)) {
+            outbox.append("sig1", json(1));
+            outbox.append("sig2", json(2));
+        }
+        //недописанная при аварии запись: заголовок обещает 100 байт тела, а на диске только 3
+        Path segment = lastSegment();
+        Files.write(segment, new byte[]{0, 0, 0, 100, 1, 2, 3, 4, 5, 6, 7}, StandardOpenOption.APPEND);
+
+        try (DocOutbox outbox = new DocOutbox(directory, SEGMENT_SIZE)) {
+            assertEquals(List.of("sig1", "sig2"), signatures(outbox.getUnsent()));
+            outbox.append("sig3", json(3));
+        }
+        try (DocOutbox outbox = new DocOutbox(directory, SEGMENT_SIZE)) {
+            assertEquals(List.of("sig1", "sig2", "sig3"), signatures(outbox.getUnsent()));
+        }
+    }
+
+    @Test
+    public void dropsRecordWithBadChecksum() throws Exception {
+        try (DocOutbox outbox = new DocOutbox(directory, SEGMENT_SIZE)) {
+            outbox.append("sig1", json(1));
+            outbox.append("sig2", json(2));
+        }
+        //портим последний байт второй записи - она не проходит проверку CRC
+        Path segment = lastSegment();
+        byte[] data = Files.readAllBytes(segment);
+        data[data.length - 1] ^= 1;
+        Files.write(segment, data);
+
+        try (DocOutbox outbox = new DocOutbox(directory, SEGMENT_SIZE)) {
+            assertEquals(List.of("sig1"), signatures(outbox.getUnsent()));
+        }
+    }
+
+    @Test
+    public void deletesSegmentsOnceAllDocumentsAreDone() throws Exception {
+        try (DocOutbox outbox = new DocOutbox(directory, 200)) { //в сегмент помещается пара документов
+            for (int i = 0; i < 10; i++) {
+                long id = outbox.append("sig", json(i));
+                if (i % 2 == 0) {
+                    outbox.markSent(id);
+                } else {
+                    outbox.markFailed(id);
+                }
+            }
+            assertEquals(1, segments().size(), "на диске остался только текущий сегмент");
+        }
+        try (DocOutbox outbox = new DocOutbox(directory, 200)) {
+            assertTrue(outbox.getUnsent().isEmpty());
+        }
+    }
+
+    @Test
+    public void appendAsyncCompletesAfterRecordIsDurable() throws Exception {
+        List<CompletableFuture<Long>> ids = new ArrayList<>();
+        try (DocOutbox outbox = new DocOutbox(directory, 300)) { //несколько смен сегмента
+            for (int i = 0; i < 20; i++) {
+                ids.add(outbox.appendAsync("sig" + i, json(i)));
+            }
+            for (CompletableFuture<Long> id : ids) {
+                id.get(5, TimeUnit.SECONDS);
+            }
+            outbox.markSent(ids.get(0).get());
+        }
+        try (DocOutbox outbox = new DocOutbox(directory, 300)) {
+            List<DocOutbox.Entry> unsent = outbox.getUnsent();
+            assertEquals(19, unsent.size(), "все записи, чей future завершился, пережили рестарт");
+            for (int i = 1; i < 20; i++) {
+                assertEquals(ids.get(i).get(), unsent.get(i - 1).id);
+            }
+        }
+    }
+
+    @Test
+    public void appendAsyncFailsOnClosedOutbox() throws Exception {
+        DocOutbox outbox = new DocOutbox(directory, SEGMENT_SIZE);
+        outbox.close();
+        ExecutionException e = assertThrows(ExecutionException.class, () -> outbox.appendAsync("sig", json(1)).get());
+        assertInstanceOf(IOException.class, e.getCause());
+    }
+
+    private static byte[] json(int number) {
+        return ("{\"doc_id\":\"" + number + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> signatures(List<DocOutbox.Entry> entries) {
+        return entries.stream().map(entry -> entry.signature).collect(Collectors.toList());
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private Path lastSegment() throws IOException {
+        List<Path> segments = segments();
+        return segments.get(segments.size() - 1);
+    }
+}
@@ -0,0 +1,46 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DocSerializerTest {
+    @Test
+    public void writesDatesAsIsoStrings() throws Exception {
+        Doc doc = new Doc();
+        doc.doc_id = "1";
+        doc.production_date = LocalDate.of(2024, 1, 31);
+        String json = new String(new DocSerializer().serialize(doc), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"production_date\":\"2024-01-31\""), json);
+    }
+
+    @Test
+    public void threadsBeyondPoolGetTheirOwnBuffers() throws Exception {
+        //пул на один буфер, а сериализуют восемь потоков: чужой документ в ответ попасть не должен
+        DocSerializer serializer = new DocSerializer(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> jsons = IntStream.range(0, 2000).mapToObj(i -> executor.submit(() -> {
+                Doc doc = new Doc();
+                doc.doc_id = String.valueOf(i);
+                return new String(serializer.serialize(doc), StandardCharsets.UTF_8);
+            })).collect(Collectors.toList());
+            for (int i = 0; i < jsons.size(); i++) {
+                String json = jsons.get(i).get(10, TimeUnit.SECONDS);
+                assertTrue(json.startsWith("{") && json.endsWith("}"), json);
+                assertEquals(1, json.split("\"doc_id\":\"" + i + "\"", -1).length - 1, json);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
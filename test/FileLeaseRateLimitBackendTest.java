@@ -0,0 +1,83 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*  Проверки общего файла кольца. Узлы изображают экземпляры на одном файле в этой же JVM:
+    для кольца в файле это то же, что разные процессы, а заодно проверяется блокировка файла внутри JVM.
+ */
+public class FileLeaseRateLimitBackendTest {
+    private static final int LIMIT = 5;
+    private static final long PERIOD = TimeUnit.SECONDS.toNanos(1);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void nodesOnOneFileShareTheWindow() throws Exception {
+        Path file = directory.resolve("crpt.ring");
+        List<Long> sendTimes = Collections.synchronizedList(new ArrayList<>());
+        try (FileLeaseRateLimitBackend first = new FileLeaseRateLimitBackend(file, LIMIT, 2);
+             FileLeaseRateLimitBackend second = new FileLeaseRateLimitBackend(file, LIMIT, 2)) {
+            List<Thread> nodes = new ArrayList<>();
+            for (FileLeaseRateLimitBackend backend : List.of(first, second)) {
+                nodes.add(new Thread(() -> {
+                    long notBefore = System.nanoTime();
+                    for (int i = 0; i < 20; i++) {
+                        //без OverlappingFileLockException, хотя оба экземпляра блокируют один файл
+                        sendTimes.add(backend.reserve(PERIOD, 0, notBefore));
+                    }
+                }));
+            }
+            nodes.forEach(Thread::start);
+            for (Thread node : nodes) {
+                node.join();
+            }
+        }
+        assertEquals(40, sendTimes.size());
+        List<Long> sorted = new ArrayList<>(sendTimes);
+        sorted.sort((a, b) -> Long.compare(a - b, 0));
+        for (int i = 0; i + LIMIT < sorted.size(); i++) {
+            assertTrue(sorted.get(i + LIMIT) - sorted.get(i) >= PERIOD,
+                    "в окно попало больше " + LIMIT + " слотов двух узлов, начиная со слота " + i);
+        }
+    }
+
+    @Test
+    public void pauseAndThrottleReachOtherNodes() throws Exception {
+        Path file = directory.resolve("crpt.ring");
+        try (FileLeaseRateLimitBackend first = new FileLeaseRateLimitBackend(file, 100, 4);
+             FileLeaseRateLimitBackend second = new FileLeaseRateLimitBackend(file, 100, 4)) {
+            RateLimiter throttled = new RateLimiter(TimeUnit.SECONDS, 100, first);
+            RateLimiter other = new RateLimiter(TimeUnit.SECONDS, 100, second);
+            long slotBeforePause = other.reserve();
+
+            throttled.throttle();
+            long pauseEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            throttled.pauseUntil(pauseEnd);
+
+            //второй узел узнает о перегрузке при следующем обращении к файлу
+            long sendTime = other.reserve();
+            long clockError = TimeUnit.MILLISECONDS.toNanos(5); //пересчет от эпохи у двух экземпляров
+            assertTrue(sendTime - (pauseEnd - clockError) >= 0, "слот не раньше паузы другого узла");
+            assertFalse(other.isCurrent(slotBeforePause), "слот, выданный до паузы, пропадает");
+            assertEquals(75, other.getEffectiveRequestLimit(), "снижение лимита видно другому узлу");
+
+            //узел, создавший ограничитель позже, сразу получает общее состояние
+            RateLimiter late = new RateLimiter(TimeUnit.SECONDS, 100, second);
+            assertEquals(75, late.getEffectiveRequestLimit());
+
+            //серия отказов на разных узлах снижает лимит один раз за окно
+            other.throttle();
+            assertEquals(75, throttled.getEffectiveRequestLimit());
+        }
+    }
+}
@@ -0,0 +1,236 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*  Минимальная заглушка HTTP/2 без шифрования (h2c) для проверки мультиплексирования посылок.
+    В JDK нет HTTP/2 сервера, а тащить ради замеров Jetty или Netty не хочется.
+
+    Клиент JDK по адресу http:// с версией HTTP_2 посылает первый запрос по HTTP/1.1
+    с заголовком Upgrade: h2c. Заглушка отвечает 101 и дальше говорит фреймами HTTP/2.
+    Заголовки запросов не разбираются (для этого нужен декодер HPACK): на каждый завершенный поток
+    через delayMillis отвечаем фреймом HEADERS с единственным полем :status 200 из статической таблицы HPACK.
+    Запросы без Upgrade обслуживаются по HTTP/1.1 с пустым ответом 200.
+    Пока соединение HTTP/2 не установлено, каждый одновременный запрос клиента открывает свое
+    соединение с Upgrade, поэтому мультиплексирование видно после первого ответа.
+
+    Считаются соединения, запросы HTTP/1.1, потоки HTTP/2 и наибольшее число одновременных потоков.
+ */
+public class Http2StubServer implements Closeable {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int DATA = 0, HEADERS = 1, SETTINGS = 4, PING = 6, GOAWAY = 7, WINDOW_UPDATE = 8;
+    private static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4;
+    private static final byte STATUS_200 = (byte) 0x88; //HPACK: индексированное поле 8 статической таблицы
+
+    private final ServerSocket serverSocket;
+    private final long delayMillis;
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService responses = Executors.newSingleThreadScheduledExecutor();
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet(); //закрываем при остановке, чтение сокета не прерывается
+
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger http1Requests = new AtomicInteger();
+    private final AtomicInteger http2Streams = new AtomicInteger();
+    private final AtomicInteger openStreams = new AtomicInteger();
+    private final AtomicInteger maxOpenStreams = new AtomicInteger();
+
+    public Http2StubServer(long delayMillis) throws IOException {
+        this.delayMillis = delayMillis;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        connections.execute(this::accept);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public int getHttp1Requests() {
+        return http1Requests.get();
+    }
+
+    public int getHttp2Streams() {
+        return http2Streams.get();
+    }
+
+    public int getMaxOpenStreams() {
+        return maxOpenStreams.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        connections.shutdownNow();
+        responses.shutdownNow();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connectionCount.incrementAndGet();
+                sockets.add(socket);
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                return; //сервер закрыт
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            while (true) {
+                String head = readHead(in);
+                if (head == null) {
+                    return;
+                }
+                String lower = head.toLowerCase(Locale.ROOT);
+                in.readFully(new byte[contentLength(lower)]);
+                if (lower.contains("\r\nupgrade: h2c")) {
+                    out.write(("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n")
+                            .getBytes(StandardCharsets.US_ASCII));
+                    serveHttp2(in, out);
+                    return;
+                }
+                http1Requests.incrementAndGet();
+                out.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            }
+        } catch (IOException e) {
+            //клиент закрыл соединение
+        } finally {
+            sockets.remove(socket);
+        }
+    }
+
+    private void serveHttp2(DataInputStream in, OutputStream out) throws IOException {
+        writeFrame(out, SETTINGS, 0, 0, new byte[0]);
+        respond(out, 1); //ответ на запрос, пришедший с Upgrade, идет в потоке 1
+        byte[] preface = new byte[PREFACE.length];
+        in.readFully(preface);
+        byte[] header = new byte[9];
+        while (true) {
+            in.readFully(header);
+            int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+            int type = header[3] & 0xff;
+            int flags = header[4] & 0xff;
+            int stream = ((header[5] & 0x7f) << 24) | ((header[6] & 0xff) << 16)
+                    | ((header[7] & 0xff) << 8) | (header[8] & 0xff);
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            switch (type) {
+                case SETTINGS:
+                    if ((flags & ACK) == 0) {
+                        writeFrame(out, SETTINGS, ACK, 0, new byte[0]);
+                    }
+                    break;
+                case PING:
+                    if ((flags & ACK) == 0) {
+                        writeFrame(out, PING, ACK, 0, payload);
+                    }
+                    break;
+                case GOAWAY:
+                    return;
+                case DATA:
+                    if (length > 0) { //возвращаем окно соединения, иначе клиент упрется в 64 КБ
+                        writeFrame(out, WINDOW_UPDATE, 0, 0, new byte[]{
+                                (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+                    }
+                    onEndStream(out, stream, flags);
+                    break;
+                case HEADERS:
+                    openStreams.incrementAndGet();
+                    maxOpenStreams.accumulateAndGet(openStreams.get(), Math::max);
+                    onEndStream(out, stream, flags);
+                    break;
+                default:
+                    break; //WINDOW_UPDATE, PRIORITY, RST_STREAM заглушке не важны
+            }
+        }
+    }
+
+    //Запрос в потоке stream пришел целиком (END_STREAM) - отвечаем на него через delayMillis
+    private void onEndStream(OutputStream out, int stream, int flags) {
+        if ((flags & END_STREAM) == 0) {
+            return;
+        }
+        responses.schedule(() -> {
+            try {
+                respond(out, stream);
+            } catch (IOException ignored) {
+                //соединение уже закрыто
+            }
+            openStreams.decrementAndGet();
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void respond(OutputStream out, int stream) throws IOException {
+        http2Streams.incrementAndGet();
+        writeFrame(out, HEADERS, END_HEADERS | END_STREAM, stream, new byte[]{STATUS_200});
+    }
+
+    private static void writeFrame(OutputStream out, int type, int flags, int stream, byte[] payload)
+            throws IOException {
+        byte[] frame = new byte[9 + payload.length];
+        frame[0] = (byte) (payload.length >>> 16);
+        frame[1] = (byte) (payload.length >>> 8);
+        frame[2] = (byte) payload.length;
+        frame[3] = (byte) type;
+        frame[4] = (byte) flags;
+        frame[5] = (byte) (stream >>> 24);
+        frame[6] = (byte) (stream >>> 16);
+        frame[7] = (byte) (stream >>> 8);
+        frame[8] = (byte) stream;
+        System.arraycopy(payload, 0, frame, 9, payload.length);
+        synchronized (out) { //ответы пишет и поток соединения, и планировщик
+            out.write(frame);
+            out.flush();
+        }
+    }
+
+    //Заголовок запроса HTTP/1.1 до пустой строки или null, если соединение закрыто
+    private static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        for (int b; (b = in.read()) >= 0; ) {
+            head.write(b);
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+            if (matched == 4) {
+                return head.toString(StandardCharsets.US_ASCII);
+            }
+        }
+        return null;
+    }
+
+    private static int contentLength(String head) {
+        int start = head.indexOf("\r\ncontent-length:");
+        if (start < 0) {
+            return 0;
+        }
+        int end = head.indexOf("\r\n", start + 2);
+        return Integer.parseInt(head.substring(start + "\r\ncontent-length:".length(), end).trim());
+    }
+}
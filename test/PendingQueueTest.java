@@ -0,0 +1,155 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PendingQueueTest {
+    private static final Runnable NOTHING = () -> {
+    };
+
+    @Test
+    public void rejectFailsWhenFull() throws InterruptedException {
+        PendingQueue queue = new PendingQueue(2, PendingQueue.OverloadPolicy.REJECT, 0, TimeUnit.MILLISECONDS);
+        PendingQueue.Entry first = queue.admit(NOTHING);
+        queue.admit(NOTHING);
+        assertEquals(2, queue.getPending());
+        assertThrows(RejectedExecutionException.class, () -> queue.admit(NOTHING));
+
+        assertTrue(first.claim());
+        assertFalse(first.claim(), "место отдается только один раз");
+        assertEquals(1, queue.getPending());
+        assertNotNull(queue.admit(NOTHING));
+    }
+
+    @Test
+    public void blockWaitsForPlace() throws InterruptedException {
+        PendingQueue queue = new PendingQueue(1, PendingQueue.OverloadPolicy.BLOCK, 50, TimeUnit.MILLISECONDS);
+        PendingQueue.Entry first = queue.admit(NOTHING);
+        long start = System.nanoTime();
+        assertThrows(RejectedExecutionException.class, () -> queue.admit(NOTHING));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50), "отказ не раньше blockTimeout");
+
+        Thread sender = new Thread(() -> {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return;
+            }
+            first.claim();
+        });
+        sender.start();
+        assertNotNull(queue.admit(NOTHING));
+        sender.join();
+    }
+
+    @Test
+    public void dropOldestReplacesOldestPendingEntry() throws InterruptedException {
+        PendingQueue queue = new PendingQueue(2, PendingQueue.OverloadPolicy.DROP_OLDEST, 0, TimeUnit.MILLISECONDS);
+        AtomicInteger dropped = new AtomicInteger();
+        PendingQueue.Entry first = queue.admit(() -> dropped.compareAndSet(0, 1));
+        PendingQueue.Entry second = queue.admit(() -> dropped.compareAndSet(0, 2));
+        PendingQueue.Entry third = queue.admit(NOTHING);
+
+        assertEquals(1, dropped.get(), "вытеснен самый старый запрос");
+        assertFalse(first.claim(), "вытесненный запрос не посылается");
+        assertEquals(2, queue.getPending());
+        assertTrue(second.claim());
+        assertTrue(third.claim());
+        assertEquals(0, queue.getPending());
+    }
+
+    @Test
+    public void dropOldestSkipsClaimedEntries() throws InterruptedException {
+        PendingQueue queue = new PendingQueue(2, PendingQueue.OverloadPolicy.DROP_OLDEST, 0, TimeUnit.MILLISECONDS);
+        AtomicInteger dropped = new AtomicInteger();
+        PendingQueue.Entry first = queue.admit(dropped::incrementAndGet);
+        PendingQueue.Entry second = queue.admit(dropped::incrementAndGet);
+        assertTrue(first.claim());
+        queue.admit(NOTHING); //место первого свободно, вытеснять никого не нужно
+        queue.admit(NOTHING);
+
+        assertEquals(1, dropped.get());
+        assertFalse(second.claim());
+        assertEquals(2, queue.getPending());
+    }
+
+    @Test
+    public void callerRunsLaterDoesNotTakePlace() throws InterruptedException {
+        PendingQueue queue = new PendingQueue(1, PendingQueue.OverloadPolicy.CALLER_RUNS_LATER, 0, TimeUnit.MILLISECONDS);
+        PendingQueue.Entry first = queue.admit(NOTHING);
+        assertNotSame(queue.CALLER_RUNS, first);
+        assertSame(queue.CALLER_RUNS, queue.admit(NOTHING));
+        assertFalse(queue.CALLER_RUNS.claim(), "у вызывающего потока нет места, которое нужно отдать");
+        assertEquals(1, queue.getPending());
+    }
+
+    @Test
+    public void tryAdmitIgnoresPolicy() throws InterruptedException {
+        PendingQueue queue = new PendingQueue(1, PendingQueue.OverloadPolicy.DROP_OLDEST, 0, TimeUnit.MILLISECONDS);
+        AtomicInteger dropped = new AtomicInteger();
+        PendingQueue.Entry first = queue.tryAdmit(0, TimeUnit.NANOSECONDS, dropped::incrementAndGet);
+        assertNotNull(first);
+        assertNull(queue.tryAdmit(10, TimeUnit.MILLISECONDS, NOTHING));
+        assertEquals(0, dropped.get(), "tryAdmit никого не вытесняет");
+        assertTrue(first.claim());
+        assertNotNull(queue.tryAdmit(0, TimeUnit.NANOSECONDS, NOTHING));
+    }
+
+    @Test
+    public void droppedWaiterIsInterruptedAndRejected() throws Exception {
+        PendingQueue queue = new PendingQueue(1, PendingQueue.OverloadPolicy.DROP_OLDEST, 0, TimeUnit.MILLISECONDS);
+        CountDownLatch admitted = new CountDownLatch(1);
+        CompletableFuture<Throwable> outcome = new CompletableFuture<>();
+        AtomicBoolean leftInterrupted = new AtomicBoolean();
+        Thread waiting = new Thread(() -> {
+            try {
+                PendingQueue.Waiter waiter = queue.admitWaiter();
+                admitted.countDown();
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(10)); //ждет своего слота
+                    waiter.claim();
+                } catch (InterruptedException e) {
+                    waiter.interrupted(e);
+                }
+                outcome.complete(null);
+            } catch (Throwable e) {
+                leftInterrupted.set(Thread.currentThread().isInterrupted());
+                outcome.complete(e);
+            }
+        });
+        waiting.start();
+        admitted.await();
+
+        PendingQueue.Waiter newer = queue.admitWaiter();
+        assertInstanceOf(RejectedExecutionException.class, outcome.get(5, TimeUnit.SECONDS), "ожидание вытеснено");
+        waiting.join();
+        assertFalse(leftInterrupted.get(), "вытеснение не оставляет флага прерывания");
+        newer.claim();
+        newer.claim(); //повторная посылка
+        assertEquals(0, queue.getPending());
+    }
+
+    @Test
+    public void interruptedWaiterGivesBackPlace() throws InterruptedException {
+        PendingQueue queue = new PendingQueue(1, PendingQueue.OverloadPolicy.REJECT, 0, TimeUnit.MILLISECONDS);
+        PendingQueue.Waiter waiter = queue.admitWaiter();
+        assertThrows(RejectedExecutionException.class, queue::admitWaiter);
+        assertThrows(InterruptedException.class, () -> waiter.interrupted(new InterruptedException()));
+        assertEquals(0, queue.getPending());
+        assertNotNull(queue.tryAdmitWaiter(0, TimeUnit.NANOSECONDS), "место отдано");
+    }
+}
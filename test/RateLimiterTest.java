@@ -0,0 +1,140 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*  Главное свойство ограничителя: в любое окно длиной timeUnit попадает не больше requestLimit слотов.
+    Слоты выдаются сразу, поэтому большинство проверок не ждут наступления слотов и идут быстро.
+ */
+public class RateLimiterTest {
+    private static final int LIMIT = 50;
+    private static final long PERIOD = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void batchKeepsSlidingWindow() {
+        RateLimiter rateLimiter = new RateLimiter(TimeUnit.SECONDS, LIMIT);
+        long[] sendTimes = rateLimiter.reserve(5 * LIMIT);
+        assertWindows(sendTimes);
+    }
+
+    @Test
+    public void concurrentReservationsKeepSlidingWindow() throws InterruptedException {
+        RateLimiter rateLimiter = new RateLimiter(TimeUnit.SECONDS, LIMIT);
+        ConcurrentLinkedQueue<Long> sendTimes = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < LIMIT; i++) {
+                    sendTimes.add(rateLimiter.reserve());
+                }
+                for (long sendTime : rateLimiter.reserve(LIMIT)) {
+                    sendTimes.add(sendTime);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(8 * 2 * LIMIT, sendTimes.size());
+        assertWindows(sendTimes.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    @Test
+    public void burstWithinLimitIsAdmittedAtOnce() {
+        RateLimiter rateLimiter = new RateLimiter(TimeUnit.SECONDS, LIMIT);
+        long[] sendTimes = rateLimiter.reserve(LIMIT);
+        long now = System.nanoTime();
+        for (long sendTime : sendTimes) {
+            assertTrue(sendTime - now <= 0, "слот в пределах лимита не ждет");
+        }
+    }
+
+    @Test
+    public void pacedSlotsAreSpacedEvenly() {
+        RateLimiter rateLimiter = new RateLimiter(TimeUnit.SECONDS, LIMIT, null, true);
+        long[] sendTimes = rateLimiter.reserve(LIMIT);
+        for (int i = 1; i < sendTimes.length; i++) {
+            assertTrue(sendTimes[i] - sendTimes[i - 1] >= PERIOD / LIMIT, "слоты " + (i - 1) + " и " + i);
+        }
+    }
+
+    @Test
+    public void acquireStartsWithinLateness() throws InterruptedException {
+        RateLimiter rateLimiter = new RateLimiter(TimeUnit.SECONDS, LIMIT);
+        long[] sendTimes = new long[2 * LIMIT];
+        for (int i = 0; i < sendTimes.length; i++) {
+            sendTimes[i] = rateLimiter.acquire();
+            assertTrue(System.nanoTime() - sendTimes[i] >= 0, "acquire вернулся раньше слота");
+        }
+        assertWindows(sendTimes);
+    }
+
+    @Test
+    public void throttleKeepsReservedSlots() {
+        RateLimiter rateLimiter = new RateLimiter(TimeUnit.SECONDS, 10);
+        long[] sendTimes = rateLimiter.reserve(100);
+        rateLimiter.throttle();
+        int effectiveLimit = rateLimiter.getEffectiveRequestLimit();
+        assertTrue(effectiveLimit < 10);
+        for (long sendTime : sendTimes) {
+            assertTrue(rateLimiter.isCurrent(sendTime), "снижение лимита не бросает выданные слоты");
+        }
+        //а новые слоты разнесены уже по сниженному лимиту
+        assertTrue(rateLimiter.reserve() - sendTimes[90] >= PERIOD * 10 / effectiveLimit);
+    }
+
+    @Test
+    public void pauseVoidsOnlySlotsInsideIt() {
+        RateLimiter rateLimiter = new RateLimiter(TimeUnit.SECONDS, 10);
+        long[] sendTimes = rateLimiter.reserve(30); //по 10 слотов в каждом из трех окон
+        long pauseEnd = sendTimes[10] + PERIOD / 2;
+        rateLimiter.pauseUntil(pauseEnd);
+        for (int i = 0; i < 20; i++) {
+            assertFalse(rateLimiter.isCurrent(sendTimes[i]), "слот " + i + " раньше конца паузы");
+        }
+        for (int i = 20; i < 30; i++) {
+            assertTrue(rateLimiter.isCurrent(sendTimes[i]), "слот " + i + " после паузы остается в силе");
+        }
+        assertTrue(rateLimiter.reserve() - pauseEnd >= 0, "новый слот не раньше конца паузы");
+    }
+
+    @Test
+    public void startWindowDelaysExtraStartsWithoutDroppingThem() {
+        InMemoryRateLimitBackend backend = new InMemoryRateLimitBackend(TimeUnit.SECONDS, LIMIT);
+        long now = System.nanoTime();
+        for (int i = 0; i < LIMIT; i++) {
+            assertEquals(0, backend.start(now, PERIOD), "начало " + i + " помещается в окно");
+        }
+        long waitingTime = backend.start(now, PERIOD);
+        assertTrue(waitingTime > 0 && waitingTime <= PERIOD, "лишнее начало ждет освобождения окна: " + waitingTime);
+    }
+
+    @Test
+    public void tryStartWaitsForSlotAndDropsPausedSlot() {
+        RateLimiter rateLimiter = new RateLimiter(TimeUnit.SECONDS, 1);
+        assertEquals(0, rateLimiter.tryStart(rateLimiter.reserve()));
+        long sendTime = rateLimiter.reserve(); //через окно
+        assertTrue(rateLimiter.tryStart(sendTime) > 0, "слот еще не наступил");
+        rateLimiter.pauseUntil(sendTime + 1);
+        assertEquals(-1, rateLimiter.tryStart(sendTime), "слот внутри паузы пропадает");
+    }
+
+    //Сортирует слоты и проверяет, что между слотами, отстоящими на LIMIT, проходит не меньше окна
+    private static void assertWindows(long[] sendTimes) {
+        long[] sorted = sendTimes.clone();
+        Arrays.sort(sorted); //все слоты из одного запуска JVM, переполнения nanoTime не ждем
+        for (int i = LIMIT; i < sorted.length; i++) {
+            assertTrue(sorted[i] - sorted[i - LIMIT] >= PERIOD,
+                    "в окно попало больше " + LIMIT + " слотов, начиная со слота " + (i - LIMIT));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RetryPolicyTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void retriesOnlyTransientStatuses() {
+        for (int status : new int[]{408, 429, 500, 502, 503, 504}) {
+            assertTrue(RetryPolicy.isRetryable(status), "статус " + status);
+        }
+        for (int status : new int[]{200, 400, 401, 403, 404, 409, 501}) {
+            assertFalse(RetryPolicy.isRetryable(status), "статус " + status);
+        }
+        assertTrue(RetryPolicy.isSuccess(200));
+        assertTrue(RetryPolicy.isSuccess(299));
+        assertFalse(RetryPolicy.isSuccess(300));
+    }
+
+    @Test
+    public void parsesRetryAfterSecondsAndDate() {
+        assertEquals(5 * SECOND, RetryPolicy.retryAfterNanos(response(429, "5")));
+        assertEquals(-1, RetryPolicy.retryAfterNanos(response(429, null)));
+        assertEquals(-1, RetryPolicy.retryAfterNanos(response(429, "скоро")));
+
+        String date = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(10));
+        long delay = RetryPolicy.retryAfterNanos(response(503, date));
+        //в дате HTTP нет долей секунды
+        assertTrue(delay > 8 * SECOND && delay <= 10 * SECOND, "Retry-After датой: " + delay);
+        String past = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).minusSeconds(10));
+        assertEquals(0, RetryPolicy.retryAfterNanos(response(503, past)));
+    }
+
+    @Test
+    public void tooManyRequestsThrottlesAndPausesLimiter() {
+        RateLimiter rateLimiter = new RateLimiter(TimeUnit.SECONDS, 100);
+        RetryPolicy policy = new RetryPolicy(3, Duration.ofMillis(10), Duration.ofSeconds(1), true);
+        long before = System.nanoTime();
+        long delay = policy.retryDelay(1, response(429, "2"), null, rateLimiter);
+
+        assertTrue(delay >= 2 * SECOND, "повтор не раньше Retry-After");
+        assertTrue(rateLimiter.getEffectiveRequestLimit() < 100, "лимит снижен");
+        assertTrue(rateLimiter.reserve() - (before + 2 * SECOND) >= 0, "остальные посылки ждут конца паузы");
+    }
+
+    @Test
+    public void successRecoversLimit() {
+        RateLimiter rateLimiter = new RateLimiter(TimeUnit.SECONDS, 4);
+        rateLimiter.throttle();
+        assertEquals(3, rateLimiter.getEffectiveRequestLimit());
+        RetryPolicy policy = new RetryPolicy();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(-1, policy.retryDelay(1, response(200, null), null, rateLimiter));
+        }
+        assertEquals(4, rateLimiter.getEffectiveRequestLimit(), "effectiveLimit успехов поднимают лимит на 1");
+    }
+
+    @Test
+    public void givesUpOnFatalStatusAndAfterLastAttempt() {
+        RateLimiter rateLimiter = new RateLimiter(TimeUnit.SECONDS, 100);
+        RetryPolicy policy = new RetryPolicy(3, Duration.ofMillis(100), Duration.ofSeconds(1), false);
+        assertEquals(-1, policy.retryDelay(1, response(401, null), null, rateLimiter));
+
+        IOException error = new IOException("обрыв соединения");
+        long delay = policy.retryDelay(1, null, error, rateLimiter);
+        assertTrue(delay >= 0 && delay <= TimeUnit.MILLISECONDS.toNanos(100), "первый повтор не дольше base");
+        delay = policy.retryDelay(2, null, error, rateLimiter);
+        assertTrue(delay >= 0 && delay <= TimeUnit.MILLISECONDS.toNanos(200), "второй - не дольше base * 2");
+        assertEquals(-1, policy.retryDelay(3, null, error, rateLimiter), "попытки кончились");
+    }
+
+    //Ответ со статусом status и заголовком Retry-After, если retryAfter не null
+    private static HttpResponse<String> response(int status, String retryAfter) {
+        HttpHeaders headers = HttpHeaders.of((retryAfter != null) ? Map.of("Retry-After", List.of(retryAfter)) : Map.of(),
+                (name, value) -> true);
+        return new HttpResponse<>() {
+            @Override
+            public int statusCode() {
+                return status;
+            }
+
+            @Override
+            public HttpRequest request() {
+                return HttpRequest.newBuilder(uri()).build();
+            }
+
+            @Override
+            public Optional<HttpResponse<String>> previousResponse() {
+                return Optional.empty();
+            }
+
+            @Override
+            public HttpHeaders headers() {
+                return headers;
+            }
+
+            @Override
+            public String body() {
+                return "";
+            }
+
+            @Override
+            public Optional<SSLSession> sslSession() {
+                return Optional.empty();
+            }
+
+            @Override
+            public URI uri() {
+                return URI.create("http://127.0.0.1/api/v3/lk/documents/create");
+            }
+
+            @Override
+            public HttpClient.Version version() {
+                return HttpClient.Version.HTTP_1_1;
+            }
+        };
+    }
+}
@@ -0,0 +1,104 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SigningStageTest {
+    private static byte[] payload(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void resubmittedPayloadIsSignedOnce() throws Exception {
+        AtomicInteger signed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            SigningStage stage = new SigningStage(payload -> "sig-" + signed.incrementAndGet(), executor, 2);
+            String first = stage.sign(payload("a")).get(5, TimeUnit.SECONDS);
+            //тот же документ в новом массиве - ключ кэша по содержимому, а не по ссылке
+            assertEquals(first, stage.sign(payload("a")).get(5, TimeUnit.SECONDS));
+            assertEquals(1, signed.get());
+            assertEquals(1, stage.getCacheHits());
+            assertEquals(1, stage.getCacheMisses());
+
+            //кэш на две записи: "a" использовали раньше всех, ее и вытесняют
+            stage.sign(payload("b")).get(5, TimeUnit.SECONDS);
+            stage.sign(payload("c")).get(5, TimeUnit.SECONDS);
+            stage.sign(payload("a")).get(5, TimeUnit.SECONDS);
+            assertEquals(4, signed.get(), "вытесненную подпись считают заново");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void simultaneousIdenticalPayloadsShareOneSigning() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger signed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            SigningStage stage = new SigningStage(payload -> {
+                signed.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new SignatureException(e);
+                }
+                return "signature";
+            }, executor, 16);
+            List<CompletableFuture<String>> signatures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                signatures.add(stage.sign(payload("same")));
+            }
+            //первая подпись еще считается, а остальные запросы уже ждут ее же
+            assertFalse(signatures.get(0).isDone());
+            assertEquals(9, stage.getCacheHits());
+            release.countDown();
+            for (CompletableFuture<String> signature : signatures) {
+                assertEquals("signature", signature.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, signed.get());
+
+            //отмена одним вызывающим не задевает подпись в кэше
+            stage.sign(payload("same")).cancel(false);
+            assertEquals("signature", stage.sign(payload("same")).get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedSigningIsNotCached() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            SigningStage stage = new SigningStage(payload -> {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new SignatureException("ключ недоступен");
+                }
+                return "signature";
+            }, executor, 16);
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> stage.sign(payload("doc")).get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof SignatureException);
+            assertEquals("signature", stage.sign(payload("doc")).get(5, TimeUnit.SECONDS));
+            assertEquals(2, attempts.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
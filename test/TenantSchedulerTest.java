@@ -0,0 +1,87 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*  Проверки справедливого планировщика. Исполнитель - сам диспетчер (Runnable::run),
+    поэтому список sent хранит ровно тот порядок, в котором участники получали слоты.
+ */
+public class TenantSchedulerTest {
+    private final List<String> sent = new ArrayList<>();
+
+    private Runnable task(String inn, CountDownLatch done) {
+        return () -> {
+            synchronized (sent) {
+                sent.add(inn);
+            }
+            done.countDown();
+        };
+    }
+
+    @Test
+    public void singleDocumentDoesNotWaitForOtherTenantsBatch() throws Exception {
+        //100 в секунду: диспетчер берет слот раз в 10 мс, пачка из 50 документов идет полсекунды
+        TenantScheduler scheduler = new TenantScheduler("test", new RateLimiter(TimeUnit.SECONDS, 100), Runnable::run, null);
+        CountDownLatch done = new CountDownLatch(51);
+        for (int i = 0; i < 50; i++) {
+            scheduler.submit("batch", task("batch", done));
+        }
+        TimeUnit.MILLISECONDS.sleep(50);
+        scheduler.submit("single", task("single", done));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        int position;
+        synchronized (sent) {
+            position = sent.indexOf("single");
+        }
+        //без справедливости документ встал бы за всей пачкой, т.е. на место 50
+        assertTrue(position < 15, "документ второго участника ушел " + (position + 1) + "-м");
+        assertEquals(0, scheduler.getTenantCount(), "участники с пустой очередью и без настроек убраны");
+    }
+
+    @Test
+    public void weightGivesProportionalShare() throws Exception {
+        TenantScheduler scheduler = new TenantScheduler("test", new RateLimiter(TimeUnit.SECONDS, 100), Runnable::run, null);
+        scheduler.setWeight("heavy", 3);
+        CountDownLatch done = new CountDownLatch(80);
+        for (int i = 0; i < 40; i++) {
+            scheduler.submit("heavy", task("heavy", done));
+            scheduler.submit("light", task("light", done));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        //пока очереди обоих участников не пусты, тяжелый получает три слота из четырех
+        long heavy;
+        synchronized (sent) {
+            heavy = sent.subList(0, 40).stream().filter("heavy"::equals).count();
+        }
+        assertTrue(heavy >= 27 && heavy <= 33, "из первых 40 слотов тяжелому участнику досталось " + heavy);
+        assertEquals(1, scheduler.getTenantCount(), "участник с весом остается в таблице");
+    }
+
+    @Test
+    public void subLimitPassesTurnToOthers() throws Exception {
+        TenantScheduler scheduler = new TenantScheduler("test", new RateLimiter(TimeUnit.SECONDS, 100), Runnable::run, null);
+        scheduler.setSubLimit("limited", TimeUnit.SECONDS, 2);
+        CountDownLatch done = new CountDownLatch(24);
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit("limited", task("limited", done));
+        }
+        for (int i = 0; i < 20; i++) {
+            scheduler.submit("other", task("other", done));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        //за первые 20 слотов (около 0,2 с) участник с лимитом 2 в секунду успевает послать только два документа
+        long limited;
+        synchronized (sent) {
+            limited = sent.subList(0, 20).stream().filter("limited"::equals).count();
+        }
+        assertEquals(2, limited);
+    }
+}